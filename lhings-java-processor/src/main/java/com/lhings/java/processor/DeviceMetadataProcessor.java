@@ -0,0 +1,499 @@
+/* Copyright 2014 Lyncos Technologies S. L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lhings.java.processor;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic.Kind;
+
+import com.lhings.java.annotations.Action;
+import com.lhings.java.annotations.DeviceInfo;
+import com.lhings.java.annotations.Event;
+import com.lhings.java.annotations.Payload;
+import com.lhings.java.annotations.StatusComponent;
+
+/**
+ * Annotation processor that generates, for every concrete subclass of
+ * <code>LhingsDevice</code> with annotated members, a subclass of
+ * <code>DeviceMetadata</code> holding its descriptor, the definition of its
+ * actions, status components and events, and plain Java code that invokes the
+ * actions and reads the status components. At runtime the library uses it
+ * instead of inspecting the device class by reflection.
+ *
+ * Names are worked out with the same rules the library applies at runtime. A
+ * class for which the metadata cannot be worked out at compile time (private
+ * status fields, or several members mapped to the same name) is skipped with
+ * a note, and is configured by reflection as usual.
+ */
+@SupportedAnnotationTypes({ "com.lhings.java.annotations.Action", "com.lhings.java.annotations.Event",
+		"com.lhings.java.annotations.StatusComponent", "com.lhings.java.annotations.DeviceInfo" })
+public class DeviceMetadataProcessor extends AbstractProcessor {
+
+	private static final String DEVICE_CLASS = "com.lhings.java.LhingsDevice";
+	private static final String METADATA_CLASS = "com.lhings.java.metadata.DeviceMetadata";
+	private static final String CLASS_SUFFIX = "_LhingsMetadata";
+	private static final String DEFAULT_DEVICE_TYPE = "lhings-java";
+	private static final String VALID_NAME = "^[a-zA-Z0-9_]*$";
+
+	private final Set<String> processed = new HashSet<String>();
+
+	/**
+	 * Thrown when a class cannot be described at compile time and must be
+	 * left to be configured by reflection.
+	 */
+	private static class NotDescribableException extends Exception {
+		private static final long serialVersionUID = 1L;
+
+		NotDescribableException(String message) {
+			super(message);
+		}
+	}
+
+	private static class ActionModel {
+		ExecutableElement method;
+		String name;
+		String description;
+		boolean payloadNeeded;
+		List<String> argumentNames = new ArrayList<String>();
+		List<String> argumentTypes = new ArrayList<String>();
+		String resultName;
+	}
+
+	private static class StatusModel {
+		VariableElement field;
+		String name;
+		String type;
+	}
+
+	private static class EventModel {
+		String name;
+		List<String> componentNames = new ArrayList<String>();
+		List<String> componentTypes = new ArrayList<String>();
+	}
+
+	@Override
+	public SourceVersion getSupportedSourceVersion() {
+		return SourceVersion.latestSupported();
+	}
+
+	@Override
+	public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+		TypeElement deviceType = processingEnv.getElementUtils().getTypeElement(DEVICE_CLASS);
+		if (deviceType == null)
+			return false;
+		Map<String, TypeElement> candidates = new LinkedHashMap<String, TypeElement>();
+		for (TypeElement annotation : annotations) {
+			for (Element element : roundEnv.getElementsAnnotatedWith(annotation)) {
+				Element type = element.getKind().isClass() ? element : element.getEnclosingElement();
+				if (type.getKind().isClass())
+					candidates.put(((TypeElement) type).getQualifiedName().toString(), (TypeElement) type);
+			}
+		}
+		for (TypeElement type : candidates.values()) {
+			if (!processed.add(type.getQualifiedName().toString()))
+				continue;
+			if (type.getModifiers().contains(Modifier.ABSTRACT) || type.getModifiers().contains(Modifier.PRIVATE))
+				continue;
+			if (!processingEnv.getTypeUtils().isSubtype(processingEnv.getTypeUtils().erasure(type.asType()),
+					processingEnv.getTypeUtils().erasure(deviceType.asType())))
+				continue;
+			try {
+				generate(type);
+			} catch (NotDescribableException e) {
+				processingEnv.getMessager().printMessage(Kind.NOTE,
+						"No metadata generated for " + type.getQualifiedName() + ", it will be configured by reflection: " + e.getMessage(), type);
+			} catch (IOException e) {
+				processingEnv.getMessager().printMessage(Kind.ERROR, "Could not write metadata for " + type.getQualifiedName() + ": " + e.getMessage(),
+						type);
+			}
+		}
+		return false;
+	}
+
+	private void generate(TypeElement type) throws NotDescribableException, IOException {
+		List<StatusModel> statusComponents = new ArrayList<StatusModel>();
+		List<EventModel> events = new ArrayList<EventModel>();
+		List<ActionModel> actions = new ArrayList<ActionModel>();
+		Set<String> statusNames = new HashSet<String>();
+		Set<String> eventNames = new HashSet<String>();
+		Set<String> actionNames = new HashSet<String>();
+
+		// the library only looks at the fields declared by the device class
+		for (VariableElement field : ElementFilter.fieldsIn(type.getEnclosedElements())) {
+			StatusComponent statusComp = field.getAnnotation(StatusComponent.class);
+			if (statusComp != null) {
+				if (field.getModifiers().contains(Modifier.PRIVATE))
+					throw new NotDescribableException("status component " + field.getSimpleName() + " is private.");
+				StatusModel status = new StatusModel();
+				status.field = field;
+				status.name = validName(statusComp.name(), field, "a status component");
+				status.type = tellLhingsType(field.asType());
+				if (status.type == null) {
+					error(field, "Type " + field.asType() + " is not allowed for field " + field.getSimpleName()
+							+ ". Fields annotated with @StatusComponent can only be of the following types: int, float, double, boolean, String and java.util.Date.");
+					return;
+				}
+				if (!statusNames.add(status.name))
+					throw new NotDescribableException("several status components are named " + status.name + ".");
+				statusComponents.add(status);
+			}
+			Event eventAnnotation = field.getAnnotation(Event.class);
+			if (eventAnnotation != null) {
+				EventModel event = new EventModel();
+				event.name = validName(eventAnnotation.name(), field, "an event");
+				if (!eventNames.add(event.name))
+					throw new NotDescribableException("several events are named " + event.name + ".");
+				String[] componentNames = eventAnnotation.component_names();
+				String[] componentTypes = eventAnnotation.component_types();
+				if (componentNames.length != componentTypes.length) {
+					processingEnv.getMessager().printMessage(Kind.WARNING,
+							"Payload component list for event \"" + event.name + "\" is not valid: wrong number of component types provided.", field);
+				} else {
+					for (int j = 0; j < componentNames.length; j++) {
+						event.componentNames.add(componentNames[j]);
+						event.componentTypes.add(componentTypes[j]);
+					}
+				}
+				events.add(event);
+			}
+		}
+
+		// actions are looked up among all public methods, inherited included
+		for (ExecutableElement method : ElementFilter.methodsIn(processingEnv.getElementUtils().getAllMembers(type))) {
+			Action actionAnnotation = method.getAnnotation(Action.class);
+			if (actionAnnotation == null || !method.getModifiers().contains(Modifier.PUBLIC))
+				continue;
+			ActionModel action = new ActionModel();
+			action.method = method;
+			action.name = validName(actionAnnotation.name(), method, "an action");
+			action.description = actionAnnotation.description();
+			action.resultName = actionAnnotation.resultName();
+			List<? extends VariableElement> parameters = method.getParameters();
+			if (parameters.size() == 1 && parameters.get(0).getAnnotationMirrors().size() == 1 && parameters.get(0).getAnnotation(Payload.class) != null) {
+				action.payloadNeeded = true;
+				action.description = "";
+			} else {
+				String[] argumentNames = actionAnnotation.argumentNames();
+				if (argumentNames.length != parameters.size()) {
+					error(method, "Names were provided for " + argumentNames.length + " arguments but method " + method.getSimpleName() + " declares "
+							+ parameters.size() + " arguments.");
+					return;
+				}
+				for (int j = 0; j < parameters.size(); j++) {
+					String argumentType = tellLhingsType(parameters.get(j).asType());
+					if (argumentType == null) {
+						error(method, "Type " + parameters.get(j).asType() + " is not allowed for parameters in method " + method.getSimpleName()
+								+ ". Methods annotated with @Action can only have parameters of the following types: int, float, double, boolean, String and java.util.Date.");
+						return;
+					}
+					action.argumentNames.add(argumentNames[j]);
+					action.argumentTypes.add(argumentType);
+				}
+			}
+			if (!actionNames.add(action.name))
+				throw new NotDescribableException("several actions are named " + action.name + ".");
+			actions.add(action);
+		}
+
+		String descriptor = buildDescriptor(type.getAnnotation(DeviceInfo.class), actions, statusComponents, events);
+		writeSource(type, descriptor, actions, statusComponents, events);
+	}
+
+	private String validName(String name, Element element, String what) {
+		if (!name.matches(VALID_NAME)) {
+			processingEnv.getMessager().printMessage(
+					Kind.WARNING,
+					"\"" + name + "\" is not a valid name for " + what + ". Only alphanumeric and underscore characters are allowed. Taking \""
+							+ element.getSimpleName() + "\" as name.", element);
+			return element.getSimpleName().toString();
+		}
+		if (name.length() == 0)
+			return element.getSimpleName().toString();
+		return name;
+	}
+
+	private void error(Element element, String message) {
+		processingEnv.getMessager().printMessage(Kind.ERROR, message, element);
+	}
+
+	/**
+	 * Returns the Lhings type that corresponds to a given Java type, or null
+	 * if it has none.
+	 */
+	private String tellLhingsType(TypeMirror type) {
+		String declaredType = processingEnv.getTypeUtils().erasure(type).toString();
+		if (declaredType.equals("java.lang.String")) {
+			return "string";
+		} else if (declaredType.equals("java.lang.Integer") || declaredType.equals("int")) {
+			return "integer";
+		} else if (declaredType.equals("java.lang.Float") || declaredType.equals("float") || declaredType.equals("java.lang.Double")
+				|| declaredType.equals("double")) {
+			return "float";
+		} else if (declaredType.equals("java.lang.Boolean") || declaredType.equals("boolean")) {
+			return "boolean";
+		} else if (declaredType.equals("java.util.Date")) {
+			return "timestamp";
+		} else {
+			return null;
+		}
+	}
+
+	private String buildDescriptor(DeviceInfo info, List<ActionModel> actions, List<StatusModel> statusComponents, List<EventModel> events) {
+		StringBuilder json = new StringBuilder("{\"actionList\":[");
+		for (int j = 0; j < actions.size(); j++) {
+			ActionModel action = actions.get(j);
+			if (j > 0)
+				json.append(',');
+			json.append("{\"inputs\":");
+			appendArguments(json, action.argumentNames, action.argumentTypes);
+			json.append(",\"name\":").append(quote(action.name));
+			json.append(",\"description\":").append(quote(action.description));
+			json.append(",\"payloadNeeded\":").append(action.payloadNeeded).append('}');
+		}
+		json.append("],\"stateVariableList\":[");
+		for (int j = 0; j < statusComponents.size(); j++) {
+			if (j > 0)
+				json.append(',');
+			json.append("{\"name\":").append(quote(statusComponents.get(j).name));
+			json.append(",\"type\":").append(quote(statusComponents.get(j).type)).append('}');
+		}
+		json.append("],\"eventList\":[");
+		for (int j = 0; j < events.size(); j++) {
+			EventModel event = events.get(j);
+			if (j > 0)
+				json.append(',');
+			json.append("{\"components\":");
+			appendArguments(json, event.componentNames, event.componentTypes);
+			json.append(",\"name\":").append(quote(event.name)).append('}');
+		}
+		json.append("],\"modelName\":").append(quote(info == null ? "" : info.modelName()));
+		json.append(",\"manufacturer\":").append(quote(info == null ? "" : info.manufacturer()));
+		json.append(",\"deviceType\":").append(quote(info == null ? DEFAULT_DEVICE_TYPE : info.deviceType()));
+		json.append(",\"serialNumber\":").append(quote(info == null ? "" : info.serialNumber()));
+		return json.append('}').toString();
+	}
+
+	private static void appendArguments(StringBuilder json, List<String> names, List<String> types) {
+		json.append('[');
+		for (int j = 0; j < names.size(); j++) {
+			if (j > 0)
+				json.append(',');
+			json.append("{\"name\":").append(quote(names.get(j))).append(",\"type\":").append(quote(types.get(j))).append('}');
+		}
+		json.append(']');
+	}
+
+	/**
+	 * Quotes a string as a JSON string literal.
+	 */
+	private static String quote(String value) {
+		StringBuilder quoted = new StringBuilder("\"");
+		for (int j = 0; j < value.length(); j++) {
+			char c = value.charAt(j);
+			switch (c) {
+			case '"':
+				quoted.append("\\\"");
+				break;
+			case '\\':
+				quoted.append("\\\\");
+				break;
+			case '/':
+				quoted.append("\\/");
+				break;
+			case '\b':
+				quoted.append("\\b");
+				break;
+			case '\f':
+				quoted.append("\\f");
+				break;
+			case '\n':
+				quoted.append("\\n");
+				break;
+			case '\r':
+				quoted.append("\\r");
+				break;
+			case '\t':
+				quoted.append("\\t");
+				break;
+			default:
+				if (c < ' ')
+					quoted.append(String.format("\\u%04x", (int) c));
+				else
+					quoted.append(c);
+			}
+		}
+		return quoted.append('"').toString();
+	}
+
+	/**
+	 * Quotes a string as a Java string literal.
+	 */
+	private static String literal(String value) {
+		StringBuilder quoted = new StringBuilder("\"");
+		for (int j = 0; j < value.length(); j++) {
+			char c = value.charAt(j);
+			if (c == '"' || c == '\\')
+				quoted.append('\\').append(c);
+			else if (c < ' ' || c > '~')
+				quoted.append(String.format("\\u%04x", (int) c));
+			else
+				quoted.append(c);
+		}
+		return quoted.append('"').toString();
+	}
+
+	private static String literals(List<String> values) {
+		StringBuilder array = new StringBuilder("new String[] {");
+		for (int j = 0; j < values.size(); j++) {
+			if (j > 0)
+				array.append(", ");
+			array.append(literal(values.get(j)));
+		}
+		return array.append('}').toString();
+	}
+
+	private String classLiteral(TypeMirror type) {
+		return processingEnv.getTypeUtils().erasure(type).toString() + ".class";
+	}
+
+	/**
+	 * Returns the expression that converts the given argument, as decoded by
+	 * the library, to the type of the parameter.
+	 */
+	private String argument(TypeMirror type, int index) {
+		String arg = "args[" + index + "]";
+		switch (type.getKind()) {
+		case INT:
+			return "((Number) " + arg + ").intValue()";
+		case FLOAT:
+			return "((Number) " + arg + ").floatValue()";
+		case DOUBLE:
+			return "((Number) " + arg + ").doubleValue()";
+		case BOOLEAN:
+			return "((Boolean) " + arg + ").booleanValue()";
+		default:
+			return "(" + processingEnv.getTypeUtils().erasure(type) + ") " + arg;
+		}
+	}
+
+	private void writeSource(TypeElement type, String descriptor, List<ActionModel> actions, List<StatusModel> statusComponents,
+			List<EventModel> events) throws IOException {
+		PackageElement packageElement = processingEnv.getElementUtils().getPackageOf(type);
+		String packageName = packageElement.isUnnamed() ? "" : packageElement.getQualifiedName().toString();
+		String binaryName = processingEnv.getElementUtils().getBinaryName(type).toString();
+		String simpleName = (packageName.length() == 0 ? binaryName : binaryName.substring(packageName.length() + 1)).replace('$', '_') + CLASS_SUFFIX;
+		String qualifiedName = packageName.length() == 0 ? simpleName : packageName + "." + simpleName;
+		String deviceClass = processingEnv.getTypeUtils().erasure(type.asType()).toString();
+
+		PrintWriter out = new PrintWriter(processingEnv.getFiler().createSourceFile(qualifiedName, type).openWriter());
+		try {
+			if (packageName.length() > 0) {
+				out.println("package " + packageName + ";");
+				out.println();
+			}
+			out.println("/**");
+			out.println(" * Lhings metadata of {@link " + deviceClass + "}, generated by " + getClass().getName() + ".");
+			out.println(" */");
+			out.println("public final class " + simpleName + " extends " + METADATA_CLASS + " {");
+			out.println();
+			out.println("\tpublic " + simpleName + "() {");
+			out.println("\t\tsuper(" + literal(descriptor) + ");");
+			for (ActionModel action : actions) {
+				StringBuilder parameterTypes = new StringBuilder("new Class<?>[] {");
+				List<? extends VariableElement> parameters = action.method.getParameters();
+				for (int j = 0; j < parameters.size(); j++) {
+					if (j > 0)
+						parameterTypes.append(", ");
+					parameterTypes.append(classLiteral(parameters.get(j).asType()));
+				}
+				parameterTypes.append('}');
+				out.println("\t\taddAction(" + literal(action.name) + ", " + literal(action.description) + ", " + action.payloadNeeded + ", "
+						+ literals(action.argumentNames) + ", " + literals(action.argumentTypes) + ", " + parameterTypes + ", "
+						+ classLiteral(action.method.getReturnType()) + ", " + literal(action.resultName) + ");");
+			}
+			for (StatusModel status : statusComponents) {
+				out.println("\t\taddStatusComponent(" + literal(status.name) + ", " + literal(status.type) + ");");
+			}
+			for (EventModel event : events) {
+				out.println("\t\taddEvent(" + literal(event.name) + ", " + literals(event.componentNames) + ", " + literals(event.componentTypes) + ");");
+			}
+			out.println("\t}");
+			out.println();
+
+			out.println("\tpublic Object invokeAction(Object device, int action, Object[] args) throws Exception {");
+			out.println("\t\t" + deviceClass + " d = (" + deviceClass + ") device;");
+			out.println("\t\tswitch (action) {");
+			for (int j = 0; j < actions.size(); j++) {
+				ExecutableElement method = actions.get(j).method;
+				StringBuilder call = new StringBuilder("d.").append(method.getSimpleName()).append('(');
+				List<? extends VariableElement> parameters = method.getParameters();
+				for (int k = 0; k < parameters.size(); k++) {
+					if (k > 0)
+						call.append(", ");
+					call.append(argument(parameters.get(k).asType(), k));
+				}
+				call.append(')');
+				out.println("\t\tcase " + j + ":");
+				if (method.getReturnType().getKind() == TypeKind.VOID) {
+					out.println("\t\t\t" + call + ";");
+					out.println("\t\t\treturn null;");
+				} else {
+					out.println("\t\t\treturn " + call + ";");
+				}
+			}
+			out.println("\t\tdefault:");
+			out.println("\t\t\tthrow new IllegalArgumentException(\"No action number \" + action);");
+			out.println("\t\t}");
+			out.println("\t}");
+			out.println();
+
+			out.println("\tpublic Object readStatusComponent(Object device, int component) {");
+			out.println("\t\t" + deviceClass + " d = (" + deviceClass + ") device;");
+			out.println("\t\tswitch (component) {");
+			for (int j = 0; j < statusComponents.size(); j++) {
+				out.println("\t\tcase " + j + ":");
+				out.println("\t\t\treturn d." + statusComponents.get(j).field.getSimpleName() + ";");
+			}
+			out.println("\t\tdefault:");
+			out.println("\t\t\tthrow new IllegalArgumentException(\"No status component number \" + component);");
+			out.println("\t\t}");
+			out.println("\t}");
+			out.println("}");
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,230 @@
+/* Copyright 2014 Lyncos Technologies S. L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lhings.java;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.lhings.java.metadata.DeviceMetadata;
+import com.lhings.java.model.Action;
+import com.lhings.java.model.Argument;
+import com.lhings.java.model.ArgumentType;
+import com.lhings.java.model.MethodOrFieldToInstanceMapper;
+import com.lhings.java.stun.LyncnatProtocol;
+import com.lhings.java.stun.STUNMessage;
+import com.lhings.java.stun.STUNMessageFactory;
+
+/**
+ * Invoker of one action of a device, prepared once when the device is
+ * configured: the method is made accessible, bound to the instance (device or
+ * feature) that declares it, and the name, type and conversion needed for each
+ * one of its arguments are resolved in advance. Invoking the action only
+ * decodes the arguments of the message and calls the method. For device
+ * classes compiled with the annotation processor, the method is called by the
+ * generated metadata instead of by reflection.
+ *
+ * The value returned by the method, if any, is sent back in the success
+ * response: values of the types allowed for arguments in an arguments
+ * attribute with a single argument, strings too long for an argument as the
+ * payload attribute, and any other object as JSON in the payload attribute.
+ */
+final class ActionInvoker {
+
+	private static final Logger log = LoggerFactory.getLogger(ActionInvoker.class);
+	private static final Charset UTF8 = Charset.forName("utf-8");
+	// the length of a string argument and of its name share a header byte
+	private static final int MAX_STRING_ARGUMENT_LENGTH = 255;
+
+	private final String name;
+	private final Method method;
+	private final Object target;
+	private final DeviceMetadata metadata;
+	private final int index;
+	private final Action definition;
+	private final String[] argumentNames;
+	private final ArgumentType[] argumentTypes;
+	private final boolean[] widenToDouble;
+	private final String resultName;
+	private final int maxStringResultLength;
+	private final ArgumentType resultType;
+	private final boolean hasResult;
+
+	ActionInvoker(String name, MethodOrFieldToInstanceMapper methodMapper, Action definition) {
+		this(name, definition, methodMapper.getMethod().getParameterTypes(), methodMapper.getMethod().getReturnType(), resultNameOf(methodMapper
+				.getMethod()), methodMapper.getMethod(), methodMapper.getInstance(), null, -1);
+		method.setAccessible(true);
+	}
+
+	/**
+	 * Creates an invoker for the action with the given number of the metadata
+	 * generated for the class of the device.
+	 */
+	ActionInvoker(DeviceMetadata metadata, int index, Object device) {
+		this(metadata.getActions().get(index).getName(), metadata.getActions().get(index), metadata.getParameterTypes(index), metadata
+				.getReturnType(index), metadata.getResultName(index), null, device, metadata, index);
+	}
+
+	private ActionInvoker(String name, Action definition, Class<?>[] parameterTypes, Class<?> returnType, String resultName, Method method,
+			Object target, DeviceMetadata metadata, int index) {
+		this.name = name;
+		this.definition = definition;
+		this.method = method;
+		this.target = target;
+		this.metadata = metadata;
+		this.index = index;
+
+		List<Argument> inputs = definition.getInputs();
+		argumentNames = new String[inputs.size()];
+		argumentTypes = new ArgumentType[inputs.size()];
+		widenToDouble = new boolean[inputs.size()];
+		for (int j = 0; j < inputs.size(); j++) {
+			argumentNames[j] = inputs.get(j).getName();
+			argumentTypes[j] = ArgumentType.getType(inputs.get(j).getType());
+			widenToDouble[j] = j < parameterTypes.length && (parameterTypes[j] == double.class || parameterTypes[j] == Double.class);
+		}
+
+		hasResult = returnType != void.class && returnType != Void.class;
+		resultType = typeOf(returnType);
+		this.resultName = resultName;
+		maxStringResultLength = MAX_STRING_ARGUMENT_LENGTH - resultName.getBytes(UTF8).length;
+	}
+
+	private static String resultNameOf(Method method) {
+		com.lhings.java.annotations.Action annotation = method.getAnnotation(com.lhings.java.annotations.Action.class);
+		return annotation == null ? "result" : annotation.resultName();
+	}
+
+	String getName() {
+		return name;
+	}
+
+	/**
+	 * Builds the arguments for the invocation of the action from the payload
+	 * or arguments attribute of the given message.
+	 *
+	 * @return The arguments, or null if the message does not carry the ones
+	 *         the action expects.
+	 */
+	Object[] readArguments(STUNMessage message) {
+		if (definition.isPayloadNeeded()) {
+			byte[] rawPayload = message.getAttribute(LyncnatProtocol.attrPayload);
+			if (rawPayload == null) {
+				log.warn("Action " + name + " not executed: action requires a payload but it was not provided.");
+				return null;
+			}
+			return new Object[] { new String(rawPayload, UTF8) };
+		}
+		if (argumentNames.length == 0)
+			return null;
+
+		byte[] rawArgs = message.getAttribute(LyncnatProtocol.attrArguments);
+		if (rawArgs == null) {
+			log.warn("Action " + name + " not executed: malformed action message, arguments attribute was missing.");
+			return null;
+		}
+		Map<String, Object> argumentValues = STUNMessageFactory.processArgumentsAttribute(rawArgs, definition);
+		if (argumentValues.size() != argumentNames.length) {
+			log.warn("Action " + name + " not executed: expected " + argumentNames.length + " but " + argumentValues.size() + " where provided.");
+			return null;
+		}
+		Object[] args = new Object[argumentNames.length];
+		for (int j = 0; j < args.length; j++) {
+			Object value = argumentValues.get(argumentNames[j]);
+			if (argumentTypes[j] == ArgumentType.TIMESTAMP)
+				value = new Date(1000 * Long.valueOf(value.toString()));
+			else if (widenToDouble[j] && value instanceof Number)
+				value = Double.valueOf(((Number) value).doubleValue());
+			args[j] = value;
+		}
+		return args;
+	}
+
+	/**
+	 * Returns true if the action takes arguments (or payload) that must be
+	 * read from the message before invoking it.
+	 */
+	boolean hasArguments() {
+		return definition.isPayloadNeeded() || argumentNames.length > 0;
+	}
+
+	Object invoke(Object[] args) throws IllegalAccessException, InvocationTargetException {
+		if (metadata == null)
+			return method.invoke(target, args);
+		try {
+			return metadata.invokeAction(target, index, args);
+		} catch (Exception e) {
+			throw new InvocationTargetException(e);
+		}
+	}
+
+	/**
+	 * Returns the attributes that carry the given value returned by the
+	 * action, or null if there is nothing to send back.
+	 */
+	Map<Integer, byte[]> encodeResult(Object result) {
+		if (!hasResult || result == null)
+			return null;
+		Map<Integer, byte[]> attrs = new HashMap<Integer, byte[]>();
+		if (resultType == ArgumentType.STRING) {
+			byte[] value = result.toString().getBytes(UTF8);
+			if (value.length <= maxStringResultLength) {
+				attrs.put(LyncnatProtocol.attrArguments, encodeArgument(ArgumentType.STRING, result));
+			} else {
+				attrs.put(LyncnatProtocol.attrPayload, value);
+			}
+		} else if (resultType != null) {
+			if (resultType == ArgumentType.FLOAT)
+				result = Float.valueOf(((Number) result).floatValue());
+			attrs.put(LyncnatProtocol.attrArguments, encodeArgument(resultType, result));
+		} else {
+			attrs.put(LyncnatProtocol.attrPayload, JSONObject.wrap(result).toString().getBytes(UTF8));
+		}
+		return attrs;
+	}
+
+	private byte[] encodeArgument(ArgumentType type, Object value) {
+		List<Argument> arguments = Collections.singletonList(new Argument(resultName, type.toString()));
+		return STUNMessageFactory.buildArgumentsAttribute(arguments, Collections.singletonMap(resultName, value));
+	}
+
+	/**
+	 * Returns the Lhings type of values of the given class, or null if they
+	 * cannot be sent as an argument.
+	 */
+	private static ArgumentType typeOf(Class<?> type) {
+		if (type == String.class)
+			return ArgumentType.STRING;
+		if (type == int.class || type == Integer.class)
+			return ArgumentType.INTEGER;
+		if (type == float.class || type == Float.class || type == double.class || type == Double.class)
+			return ArgumentType.FLOAT;
+		if (type == boolean.class || type == Boolean.class)
+			return ArgumentType.BOOLEAN;
+		if (Date.class.isAssignableFrom(type))
+			return ArgumentType.TIMESTAMP;
+		return null;
+	}
+}
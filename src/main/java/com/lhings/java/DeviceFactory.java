@@ -0,0 +1,33 @@
+/* Copyright 2014 Lyncos Technologies S. L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lhings.java;
+
+import java.io.IOException;
+
+import com.lhings.java.exception.LhingsException;
+
+/**
+ * Creates one device of a fleet, usually calling the constructor of a subclass
+ * of {@link LhingsDevice}. See {@link FleetBootstrap}.
+ */
+public interface DeviceFactory<T extends LhingsDevice> {
+
+	/**
+	 * Creates the device. It may be called from any thread of the bootstrap,
+	 * at the same time as other factories of the fleet.
+	 */
+	public T createDevice() throws IOException, LhingsException;
+}
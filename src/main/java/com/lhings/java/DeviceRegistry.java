@@ -0,0 +1,141 @@
+/* Copyright 2014 Lyncos Technologies S. L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lhings.java;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.lhings.java.exception.LhingsException;
+import com.lhings.java.http.WebServiceCom;
+import com.lhings.java.pushprotocol.ListenerThread;
+
+/**
+ * Registry of the devices running in this JVM. Devices are attached when they
+ * are started and detached when they are stopped, so they can be added and
+ * removed at any time while the others keep running. The resources shared by
+ * all devices, the push connection with its listener thread and the threads
+ * that run loops and actions, are created when the first device is attached
+ * and released when the last one is detached.
+ */
+public final class DeviceRegistry {
+
+	private static final Logger log = LoggerFactory.getLogger(DeviceRegistry.class);
+
+	private static final Map<String, LhingsDevice> devices = new LinkedHashMap<String, LhingsDevice>();
+	// set while the shared resources are being released, which is done
+	// without holding the lock of the registry
+	private static boolean releasing;
+
+	private DeviceRegistry() {
+	}
+
+	/**
+	 * Starts the given device, same as <code>device.start()</code>.
+	 *
+	 * @throws LhingsException
+	 */
+	public static void attach(LhingsDevice device) throws LhingsException {
+		device.start();
+	}
+
+	/**
+	 * Stops the given device, same as <code>device.stop()</code>. If it was
+	 * the last device running, the shared resources are released.
+	 */
+	public static void detach(LhingsDevice device) {
+		device.stop();
+	}
+
+	/**
+	 * Detaches the given device and attaches it again, so that it starts a
+	 * new session. The shared resources are released and created again if it
+	 * is the only device running.
+	 *
+	 * @throws LhingsException
+	 */
+	public static void reattach(LhingsDevice device) throws LhingsException {
+		detach(device);
+		attach(device);
+	}
+
+	/**
+	 * Returns the devices running, in the order they were attached.
+	 */
+	public static synchronized List<LhingsDevice> getDevices() {
+		return new ArrayList<LhingsDevice>(devices.values());
+	}
+
+	/**
+	 * Returns the running device with the given uuid, or null if there is
+	 * none.
+	 */
+	public static synchronized LhingsDevice getDevice(String uuid) {
+		return devices.get(uuid.toLowerCase());
+	}
+
+	public static synchronized int size() {
+		return devices.size();
+	}
+
+	/**
+	 * Registers a device that is starting. If the shared resources are being
+	 * released, waits until they are, so that the device creates them again
+	 * instead of getting the ones being shut down.
+	 */
+	static synchronized void register(LhingsDevice device) {
+		boolean interrupted = false;
+		while (releasing) {
+			try {
+				DeviceRegistry.class.wait();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+		devices.put(device.uuid().toLowerCase(), device);
+	}
+
+	static void unregister(LhingsDevice device) {
+		synchronized (DeviceRegistry.class) {
+			if (devices.get(device.uuid().toLowerCase()) != device)
+				return;
+			devices.remove(device.uuid().toLowerCase());
+			if (!devices.isEmpty() || releasing)
+				return;
+			releasing = true;
+		}
+		// closing the connection may take a while, so it is done without
+		// blocking the queries of the registry; devices starting meanwhile
+		// wait in register()
+		try {
+			log.info("Last device detached, releasing shared resources.");
+			ListenerThread.shutdown();
+			LhingsDevice.releaseSharedExecutors();
+			WebServiceCom.closeIdleConnections();
+		} finally {
+			synchronized (DeviceRegistry.class) {
+				releasing = false;
+				DeviceRegistry.class.notifyAll();
+			}
+		}
+	}
+}
@@ -0,0 +1,39 @@
+/* Copyright 2014 Lyncos Technologies S. L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lhings.java;
+
+import com.lhings.java.model.Device;
+
+/**
+ * Callback used to process the devices of an account one by one, as they are
+ * decoded from the response of the server. Since the list is never held in
+ * memory as a whole, accounts with a very large number of devices can be
+ * processed in constant memory. See
+ * {@link LhingsDevice#visitDevices(DeviceVisitor)}.
+ */
+public interface DeviceVisitor {
+
+	/**
+	 * Called once for every device in the list, in the order returned by the
+	 * server.
+	 *
+	 * @param device
+	 *            The device decoded. A new instance is created for each call.
+	 * @return true to keep on visiting devices, false to stop and discard the
+	 *         rest of the list.
+	 */
+	public boolean visit(Device device);
+}
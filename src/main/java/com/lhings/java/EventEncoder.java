@@ -0,0 +1,177 @@
+/* Copyright 2014 Lyncos Technologies S. L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lhings.java;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import com.lhings.java.model.Argument;
+import com.lhings.java.model.ArgumentType;
+
+/**
+ * Encoder of the structured payload of one event, built from the components
+ * declared in its <code>@Event</code> annotation. The payload is a JSON array
+ * with the name and value of each component, in the order they were declared:
+ *
+ * <code>
+ * [{"name":"distance_for_refuelling","value":25},{"name":"gps_position","value":"41.38,2.17"}]
+ * </code>
+ *
+ * The parts that do not depend on the values are prepared once, and the
+ * payload is written into a buffer that is reused between events.
+ */
+final class EventEncoder {
+
+	private final String name;
+	private final String[] componentNames;
+	private final ArgumentType[] componentTypes;
+	private final String[] prefixes;
+	private final StringBuilder buffer = new StringBuilder(128);
+
+	EventEncoder(String name, List<Argument> components) {
+		this.name = name;
+		int size = components.size();
+		componentNames = new String[size];
+		componentTypes = new ArgumentType[size];
+		prefixes = new String[size];
+		StringBuilder prefix = new StringBuilder();
+		for (int j = 0; j < size; j++) {
+			componentNames[j] = components.get(j).getName();
+			// types unknown to the library (geolocation, for instance) are
+			// sent as strings
+			componentTypes[j] = ArgumentType.getType(components.get(j).getType());
+			prefix.setLength(0);
+			prefix.append(j == 0 ? "[{\"name\":" : ",{\"name\":");
+			appendQuoted(prefix, componentNames[j]);
+			prefix.append(",\"value\":");
+			prefixes[j] = prefix.toString();
+		}
+	}
+
+	/**
+	 * Returns the payload with the given values of the components, in the
+	 * order they were declared.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the number of values is not the number of components, or
+	 *             a value does not match the type of its component.
+	 */
+	synchronized String encode(Object[] values) {
+		if (values.length != componentNames.length)
+			throw new IllegalArgumentException("Event " + name + " has " + componentNames.length + " components but " + values.length
+					+ " values were given.");
+		if (values.length == 0)
+			return "[]";
+		buffer.setLength(0);
+		for (int j = 0; j < values.length; j++) {
+			buffer.append(prefixes[j]);
+			appendValue(j, values[j]);
+			buffer.append('}');
+		}
+		return buffer.append(']').toString();
+	}
+
+	/**
+	 * Returns the payload with the given values of the components, by name.
+	 * Components without a value are sent as null.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if a value does not match the type of its component.
+	 */
+	String encode(Map<String, ?> values) {
+		Object[] orderedValues = new Object[componentNames.length];
+		for (int j = 0; j < componentNames.length; j++) {
+			orderedValues[j] = values.get(componentNames[j]);
+		}
+		return encode(orderedValues);
+	}
+
+	private void appendValue(int j, Object value) {
+		if (value == null) {
+			buffer.append("null");
+			return;
+		}
+		ArgumentType type = componentTypes[j];
+		if (type == null || type == ArgumentType.STRING) {
+			appendQuoted(buffer, value.toString());
+			return;
+		}
+		try {
+			switch (type) {
+			case INTEGER:
+				buffer.append(((Number) value).longValue());
+				break;
+			case FLOAT:
+				double number = ((Number) value).doubleValue();
+				if (Double.isNaN(number) || Double.isInfinite(number))
+					buffer.append("null");
+				else
+					buffer.append(number);
+				break;
+			case BOOLEAN:
+				buffer.append(((Boolean) value).booleanValue());
+				break;
+			case TIMESTAMP:
+				if (value instanceof Date)
+					buffer.append(((Date) value).getTime() / 1000);
+				else
+					buffer.append(((Number) value).longValue());
+				break;
+			default:
+				appendQuoted(buffer, value.toString());
+			}
+		} catch (ClassCastException e) {
+			throw new IllegalArgumentException("Value " + value + " is not valid for component " + componentNames[j] + " of type " + type
+					+ " of event " + name + ".");
+		}
+	}
+
+	private static void appendQuoted(StringBuilder out, String value) {
+		out.append('"');
+		for (int j = 0; j < value.length(); j++) {
+			char c = value.charAt(j);
+			switch (c) {
+			case '"':
+				out.append("\\\"");
+				break;
+			case '\\':
+				out.append("\\\\");
+				break;
+			case '\n':
+				out.append("\\n");
+				break;
+			case '\r':
+				out.append("\\r");
+				break;
+			case '\t':
+				out.append("\\t");
+				break;
+			default:
+				if (c < ' ') {
+					String hex = Integer.toHexString(c);
+					out.append("\\u");
+					for (int k = hex.length(); k < 4; k++)
+						out.append('0');
+					out.append(hex);
+				} else {
+					out.append(c);
+				}
+			}
+		}
+		out.append('"');
+	}
+}
@@ -2,9 +2,22 @@ package com.lhings.java;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.lhings.java.utils.PeriodicGroupScheduler;
+import com.lhings.java.utils.StripedExecutor;
 
 public abstract class Feature {
 
+	private static final Logger log = LoggerFactory.getLogger(Feature.class);
+
 	protected String name;
 	private long loopOnceEveryNTimes;
 	private long counter = 0;
@@ -12,6 +25,52 @@ public abstract class Feature {
 	
 	protected LhingsDevice parentDevice;
 
+	// features with a period of their own are scheduled by the library
+	// independently of the loop of their device
+	private long periodNanos;
+	private boolean ownLane;
+	private volatile boolean suspended;
+	private final AtomicBoolean running = new AtomicBoolean();
+	// set while a run is queued in or running on the lane of the feature
+	private final AtomicBoolean pending = new AtomicBoolean();
+	private final AtomicLong ticksSkipped = new AtomicLong();
+	private PeriodicGroupScheduler scheduler;
+	private PeriodicGroupScheduler.Registration registration;
+	private Executor timer;
+	private StripedExecutor lanes;
+
+	private final Runnable loopTask = new Runnable() {
+		public void run() {
+			try {
+				runLoop();
+			} finally {
+				pending.set(false);
+			}
+		}
+	};
+
+	private final Runnable tickTask = new Runnable() {
+		public void run() {
+			StripedExecutor featureLanes = lanes;
+			if (featureLanes == null) {
+				runLoop();
+				return;
+			}
+			// a feature slower than its period skips ticks instead of piling
+			// them up in its lane
+			if (!pending.compareAndSet(false, true)) {
+				ticksSkipped.incrementAndGet();
+				return;
+			}
+			try {
+				featureLanes.execute(Feature.this, loopTask);
+			} catch (RuntimeException e) {
+				pending.set(false);
+				throw e;
+			}
+		}
+	};
+
 	public Feature(String name){
 		this(name, 1);
 	}
@@ -21,17 +80,130 @@ public abstract class Feature {
 		this.name = name;
 	}
 	
+	/**
+	 * Creates a feature whose <code>loop()</code> is executed with the given
+	 * period, independently of the loop frequency of its device.
+	 */
+	public Feature(String name, long period, TimeUnit unit){
+		this(name, 1);
+		setPeriod(period, unit);
+	}
+	
 	public abstract void loop();
 	
 	public abstract void setup();
 	
 	void loopEvery(){
+		if (periodNanos > 0 || suspended)
+			return;
 		if (counter % loopOnceEveryNTimes == 0){
 			loop();
 		}
 		counter ++;
 	}
 	
+	private void runLoop(){
+		// a woken feature may be run by the timer while a tick is running it
+		if (suspended || !running.compareAndSet(false, true))
+			return;
+		try {
+			loop();
+		} catch (RuntimeException e) {
+			log.error("Unexpected exception thrown by loop of feature " + name + ": " + e.getMessage(), e);
+		} finally {
+			running.set(false);
+		}
+	}
+	
+	/**
+	 * Sets the period with which <code>loop()</code> is executed, independently
+	 * of the loop frequency of the device. Must be called before the device
+	 * is started.
+	 */
+	public void setPeriod(long period, TimeUnit unit){
+		if (period <= 0)
+			throw new IllegalArgumentException("Period of feature " + name + " must be positive, " + period + " given.");
+		this.periodNanos = unit.toNanos(period);
+	}
+	
+	/**
+	 * Makes <code>loop()</code> run in an execution lane of its own instead of
+	 * in the thread that ticks the features with the same period, so that a
+	 * slow feature does not delay the others. Only applies to features with a
+	 * period of their own. Must be called before the device is started.
+	 */
+	public void setOwnLane(boolean ownLane){
+		this.ownLane = ownLane;
+	}
+	
+	/**
+	 * Stops executing <code>loop()</code> until <code>wake()</code> is called.
+	 * A suspended feature with a period of its own is removed from the
+	 * scheduler, so it costs nothing while suspended.
+	 */
+	public synchronized void suspend(){
+		suspended = true;
+		if (registration != null) {
+			registration.cancel();
+			registration = null;
+		}
+	}
+	
+	/**
+	 * Resumes the execution of <code>loop()</code> after <code>suspend()</code>.
+	 * Features with a period of their own run <code>loop()</code> at once, and
+	 * then periodically; the others resume with the next loop of their device.
+	 */
+	public synchronized void wake(){
+		if (!suspended)
+			return;
+		suspended = false;
+		if (scheduler != null) {
+			try {
+				registration = scheduler.schedule(tickTask, periodNanos, TimeUnit.NANOSECONDS);
+				timer.execute(tickTask);
+			} catch (RejectedExecutionException e) {
+				// the shared executors were released after the last device
+				// stopped; the feature runs again when its device is started
+			}
+		}
+	}
+	
+	public boolean isSuspended(){
+		return suspended;
+	}
+	
+	/**
+	 * Returns the number of ticks of a feature running in its own lane that
+	 * were skipped because the previous execution of <code>loop()</code> had
+	 * not finished yet.
+	 */
+	public long getTicksSkipped(){
+		return ticksSkipped.get();
+	}
+	
+	boolean hasOwnPeriod(){
+		return periodNanos > 0;
+	}
+	
+	synchronized void schedule(PeriodicGroupScheduler scheduler, Executor timer, StripedExecutor lanes){
+		this.scheduler = scheduler;
+		this.timer = timer;
+		this.lanes = ownLane ? lanes : null;
+		pending.set(false);
+		if (!suspended)
+			registration = scheduler.schedule(tickTask, periodNanos, TimeUnit.NANOSECONDS);
+	}
+	
+	synchronized void unschedule(){
+		if (registration != null)
+			registration.cancel();
+		registration = null;
+		scheduler = null;
+		if (lanes != null)
+			lanes.remove(this);
+	}
+	
 	protected void sendEvent(String name){
 		sendEvent(name, "");
 	}
@@ -44,6 +216,19 @@ public abstract class Feature {
 		
 	}
 	
+	protected void sendEventValues(String name, Object... componentValues){
+		parentDevice.sendEventValues(aliasOf(name), componentValues);
+	}
+	
+	protected void sendEventValues(String name, Map<String, ?> componentValues){
+		parentDevice.sendEventValues(aliasOf(name), componentValues);
+	}
+	
+	private String aliasOf(String name){
+		String alias = eventNameAliases.get(name);
+		return alias == null ? name : alias;
+	}
+	
 	void setAliasForEvent(String event, String alias){
 		eventNameAliases.put(event, alias);
 	}
@@ -0,0 +1,154 @@
+/* Copyright 2014 Lyncos Technologies S. L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lhings.java;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.lhings.java.http.WebServiceCom;
+import com.lhings.java.model.FleetBootstrapResult;
+
+/**
+ * Creates and starts many devices at once. Registering a device, sending its
+ * descriptor and starting its session take several round trips to Lhings;
+ * here they are done for a bounded number of devices at the same time
+ * instead of one after another. The apikey of each account is asked for only
+ * once, and uuid.list is written once at the end instead of after
+ * registering each new device.
+ *
+ * The first attempt to start the session of each device is made by the
+ * bootstrap itself; devices that could not reach the server are returned as
+ * well, and keep on retrying in the background like any started device (see
+ * {@link LhingsDevice#getStartFuture()}).
+ *
+ * <code>
+ * List&lt;DeviceFactory&lt;Sensor&gt;&gt; factories = new ArrayList&lt;DeviceFactory&lt;Sensor&gt;&gt;();
+ * for (int j = 0; j &lt; 5000; j++) {
+ *     final String name = "sensor-" + j;
+ *     factories.add(new DeviceFactory&lt;Sensor&gt;() {
+ *         public Sensor createDevice() throws IOException, LhingsException {
+ *             return new Sensor(username, password, name);
+ *         }
+ *     });
+ * }
+ * FleetBootstrapResult&lt;Sensor&gt; result = FleetBootstrap.startAll(factories, 32);
+ * </code>
+ */
+public final class FleetBootstrap {
+
+	private static final Logger log = LoggerFactory.getLogger(FleetBootstrap.class);
+
+	private FleetBootstrap() {
+	}
+
+	/**
+	 * Creates the devices with the given factories and starts them, with at
+	 * most <code>parallelism</code> devices being brought up at the same time.
+	 * Blocks until all of them are started or have failed.
+	 *
+	 * @param factories
+	 *            Factories of the devices.
+	 * @param parallelism
+	 *            Maximum number of devices created and started at the same
+	 *            time. Their requests share the HTTP connections of the
+	 *            devices, so values above
+	 *            {@link WebServiceCom#getMaxConnections()} only make the
+	 *            extra devices wait for a connection.
+	 * @return The devices started and the failures, by position of the
+	 *         factory.
+	 * @throws InterruptedException
+	 *             If the calling thread is interrupted while waiting. Devices
+	 *             not being brought up yet are not created. Those being
+	 *             brought up at that moment are interrupted, and the ones that
+	 *             still manage to start can be found in
+	 *             {@link DeviceRegistry}.
+	 */
+	public static <T extends LhingsDevice> FleetBootstrapResult<T> startAll(Collection<? extends DeviceFactory<? extends T>> factories, int parallelism)
+			throws InterruptedException {
+		if (parallelism < 1)
+			throw new IllegalArgumentException("Parallelism must be at least 1, " + parallelism + " given.");
+		FleetBootstrapResult<T> result = new FleetBootstrapResult<T>();
+		AtomicInteger started = new AtomicInteger();
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, Math.max(1, factories.size())), new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "thr-fleet-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		List<DeviceFactory<? extends T>> factoryList = new ArrayList<DeviceFactory<? extends T>>(factories);
+		LhingsDevice.beginDeferredFileUpdates();
+		LhingsDevice.beginApiKeyCaching();
+		try {
+			for (int j = 0; j < factoryList.size(); j++)
+				executor.execute(new StartTask<T>(j, factoryList.get(j), result, started));
+			executor.shutdown();
+			try {
+				executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				// devices not created yet are abandoned, so that none is
+				// started after the caller gave up on the bootstrap
+				List<Runnable> abandoned = executor.shutdownNow();
+				for (Runnable task : abandoned)
+					result.addFailure(((StartTask<?>) task).index, e);
+				log.warn("Fleet bootstrap interrupted, " + abandoned.size() + " devices were not created.");
+				throw e;
+			}
+		} finally {
+			LhingsDevice.endApiKeyCaching();
+			LhingsDevice.endDeferredFileUpdates();
+		}
+		log.info("Fleet bootstrap finished: " + started.get() + " of " + factoryList.size() + " devices started.");
+		return result;
+	}
+
+	private static final class StartTask<T extends LhingsDevice> implements Runnable {
+		private final int index;
+		private final DeviceFactory<? extends T> factory;
+		private final FleetBootstrapResult<T> result;
+		private final AtomicInteger started;
+
+		StartTask(int index, DeviceFactory<? extends T> factory, FleetBootstrapResult<T> result, AtomicInteger started) {
+			this.index = index;
+			this.factory = factory;
+			this.result = result;
+			this.started = started;
+		}
+
+		public void run() {
+			try {
+				T device = factory.createDevice();
+				device.start(true);
+				result.addDevice(device);
+				started.incrementAndGet();
+			} catch (Exception e) {
+				log.warn("Device number " + index + " of the fleet could not be started: " + e.getMessage());
+				result.addFailure(index, e);
+			}
+		}
+	}
+}
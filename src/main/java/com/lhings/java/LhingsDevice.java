@@ -27,25 +27,38 @@ import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
-import java.util.Set;
-import java.util.UUID;
+import java.util.Random;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.apache.commons.codec.digest.DigestUtils;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.fasterxml.uuid.impl.UUIDUtil;
 import com.lhings.java.annotations.Action;
 import com.lhings.java.annotations.Customizable;
 import com.lhings.java.annotations.DeviceInfo;
@@ -53,24 +66,41 @@ import com.lhings.java.annotations.Event;
 import com.lhings.java.annotations.Payload;
 import com.lhings.java.annotations.StatusComponent;
 import com.lhings.java.exception.ActionExecutionException;
+import com.lhings.java.exception.BadRequestException;
 import com.lhings.java.exception.DeviceDoesNotExistException;
 import com.lhings.java.exception.DeviceUnreachableException;
 import com.lhings.java.exception.InitializationException;
 import com.lhings.java.exception.LhingsException;
+import com.lhings.java.exception.RateLimitExceededException;
 import com.lhings.java.exception.UnauthorizedException;
 import com.lhings.java.http.WebServiceCom;
+import com.lhings.java.metadata.DeviceMetadata;
 import com.lhings.java.model.Argument;
+import com.lhings.java.model.BulkStatusResult;
 import com.lhings.java.model.Device;
+import com.lhings.java.model.LoopStatistics;
+import com.lhings.java.model.SchedulerMetrics;
+import com.lhings.java.model.ThrottleStatistics;
 import com.lhings.java.model.MethodOrFieldToInstanceMapper;
+import com.lhings.java.outbox.Outbox;
+import com.lhings.java.outbox.OutboxEntry;
 import com.lhings.java.pushprotocol.ListenerThread;
+import com.lhings.java.pushprotocol.MessageHandler;
+import com.lhings.java.pushprotocol.OutboundQueue.Priority;
 import com.lhings.java.pushprotocol.SocketManager;
 import com.lhings.java.pushprotocol.TCPSocketManager;
 import com.lhings.java.stun.LyncnatProtocol;
 import com.lhings.java.stun.STUNMessage;
 import com.lhings.java.stun.STUNMessageFactory;
 import com.lhings.java.stun.TransactionID;
+import com.lhings.java.utils.ByteArrayKey;
 import com.lhings.java.utils.ByteMan;
 import com.lhings.java.utils.Config;
+import com.lhings.java.utils.ElasticScheduledExecutor;
+import com.lhings.java.utils.Histogram;
+import com.lhings.java.utils.PeriodicGroupScheduler;
+import com.lhings.java.utils.StripedExecutor;
+import com.lhings.java.utils.VirtualThreads;
 
 /**
  * This abstract class is the base class for all the Java devices. Any device
@@ -87,7 +117,9 @@ import com.lhings.java.utils.Config;
  * events and status components </a> of the device.
  *
  * The frequency at which the <code>loop()</code> method is executed can be set
- * using the method <code>setLoopFrequency(float frequency)</code>.
+ * using the method <code>setLoopFrequency(float frequency)</code>. Actions
+ * and status requests are handled as soon as they arrive, independently of
+ * the frequency of the loop.
  *
  * This class also provides convenience methods to interact with and obtain
  * information about other devices that belong to the same Lhings account as
@@ -99,23 +131,70 @@ public abstract class LhingsDevice {
 
 	protected static final Logger log = LoggerFactory.getLogger(LhingsDevice.class);
 	protected static final Properties uuids;
+	// hash of the last descriptor accepted by Lhings for each device, by uuid
+	private static final Properties descriptorHashes = new Properties();
+	// apikeys obtained from a password, by username and hash of the password,
+	// only kept while a fleet bootstrap is creating devices
+	private static final Map<String, String> apiKeys = new HashMap<String, String>();
+	private static int apiKeyCachers;
+	private static final Object filesLock = new Object();
+	private static int deferredFileUpdates;
+	private static boolean uuidsChanged, descriptorHashesChanged;
 	private static final File fileUuids = new File("uuid.list");
 	private static final File fileCustomizations = new File("customizations.json");
-	private static final long TIME_BETWEEN_KEEPALIVES_MILLIS = 30000;
+	private static final File fileDescriptorHashes = new File("descriptor.hashes");
 	private static final long INITIAL_TIME_BETWEEN_STARTSESSION_RETRIES_MILLIS = 1000;
+	private static final long MAX_TIME_BETWEEN_STARTSESSION_RETRIES_MILLIS = 300000;
+	private static final long TIME_BETWEEN_OUTBOX_REPLAYS_MILLIS = 5000;
+	private static final int MAX_CACHED_ACTION_RESPONSES = 64;
+	private static final int CONNECT_THREADS = 4;
+	private static final int DELIVERY_THREADS = 8;
 	private static final String DEFAULT_DEVICE_TYPE = "lhings-java";
 	private static final String VERSION_STRING = "Lhings Java SDK v2.4.4 - ja013";
 	private static boolean customizationsAvailable;
 	private static JSONObject customizations;
-	private static ScheduledExecutorService sharedTimer;
+	private static ElasticScheduledExecutor sharedTimer;
+	private static StripedExecutor inboundExecutor;
+	private static PeriodicGroupScheduler periodicTasks;
+	private static ExecutorService virtualExecutor;
+	private static StripedExecutor virtualInboundExecutor;
+	private static StripedExecutor featureExecutor;
+	// runs the attempts to start session, which block on HTTP, so that they
+	// never delay the loops and keepalives run by the shared timer
+	private static ExecutorService connectExecutor;
+	// runs the deliveries made in the background, like the replay of the
+	// outbox, which block on HTTP too; each device has a lane of its own, so
+	// that its deliveries are made in order
+	private static StripedExecutor deliveryExecutor;
+	private static final Random random = new Random();
 
 	private final Map<String, MethodOrFieldToInstanceMapper> actionMethods = new HashMap<String, MethodOrFieldToInstanceMapper>();
 	private final Map<String, com.lhings.java.model.Action> actionDefinitions = new HashMap<String, com.lhings.java.model.Action>();
 	private final Map<String, MethodOrFieldToInstanceMapper> statusFields = new HashMap<String, MethodOrFieldToInstanceMapper>();
 	private final Map<String, com.lhings.java.model.StatusComponent> statusDefinitions = new HashMap<String, com.lhings.java.model.StatusComponent>();
 	private final List<String> eventDefinitions = new ArrayList<String>();
+	private final Map<String, EventEncoder> eventEncoders = new HashMap<String, EventEncoder>();
+	private final Map<ByteArrayKey, ActionInvoker> actionInvokers = new HashMap<ByteArrayKey, ActionInvoker>();
+	private StatusCodec statusCodec;
+	// responses to the last actions executed, by transaction id, so that
+	// retransmitted requests are answered without running the action again
+	private final Map<TransactionID, byte[]> actionResponses = new LinkedHashMap<TransactionID, byte[]>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<TransactionID, byte[]> eldest) {
+			return size() > MAX_CACHED_ACTION_RESPONSES;
+		}
+	};
 
-	private ScheduledFuture<?> keepAliveScheduler, loopScheduler;
+	private ScheduledFuture<?> outboxScheduler, connectScheduler;
+	private PeriodicGroupScheduler.Registration loopScheduler;
+	private volatile StartFuture startFuture = new StartFuture();
+	private final List<StartListener> startListeners = new CopyOnWriteArrayList<StartListener>();
+	private volatile boolean stopped;
+	private volatile boolean sessionStarted;
+	private boolean descriptorSent;
+	private int sessionAttempts;
 
 	private SocketManager socketMan;
 	
@@ -134,6 +213,15 @@ public abstract class LhingsDevice {
 			log.error("Device list file could not be opened. Exiting.");
 			System.exit(1);
 		}
+		if (fileDescriptorHashes.exists()) {
+			try {
+				FileReader reader = new FileReader(fileDescriptorHashes);
+				descriptorHashes.load(reader);
+				reader.close();
+			} catch (IOException ex) {
+				log.warn("Descriptor hashes file could not be read, descriptors will be sent again. Reason: " + ex.getMessage());
+			}
+		}
 		if (!fileCustomizations.exists()) {
 			log.warn(fileCustomizations.getName() + " not found. @Customizable annotations will be ignored.");
 			customizationsAvailable = false;
@@ -161,15 +249,38 @@ public abstract class LhingsDevice {
 
 	private String jsonDescriptor;
 
+	private boolean forceDescriptorUpload;
+
 	private float loopFrequency = 10;
 
 	private List<Feature> features = new ArrayList<Feature>();
 
 	private int threads = 1;
+	// bounds of the number of threads of the shared timer, 0 for the same
+	// as the number of threads
+	private int minThreads, maxThreads;
+
+	private boolean virtualThreads;
+	private final AtomicBoolean loopRunning = new AtomicBoolean();
+
+	private boolean fixedRateLoop;
+	private long loopPeriodNanos;
+	// time at which the next execution of the loop should start, only used by
+	// the execution in progress
+	private long nextLoopStart;
+	private final Histogram loopDuration = new Histogram();
+	private final Histogram loopJitter = new Histogram();
+	private final AtomicLong loopOverruns = new AtomicLong();
+	private final AtomicLong loopsSkipped = new AtomicLong();
+	private LoopOverrunListener loopOverrunListener;
+
+	private final Map<RateLimit.Operation, RateLimiter> rateLimiters = new ConcurrentHashMap<RateLimit.Operation, RateLimiter>();
 
 	private Map<String, Integer> incrementalCountersForName = new HashMap<String, Integer>();
 	private int port;
 
+	private Outbox outbox;
+
 	/**
 	 * Creates a new device in Lhings associated to the account with the given
 	 * username and password. Username and password will not be stored in any
@@ -216,10 +327,7 @@ public abstract class LhingsDevice {
 	 * @throws LhingsException
 	 */
 	public LhingsDevice(String username, String apikey, String deviceName, List<? extends Feature> features) throws IOException, LhingsException {
-		if (apikey.matches("^[0-9abcdef]{8}?-[0-9abcdef]{4}?-[0-9abcdef]{4}?-[0-9abcdef]{4}?-[0-9abcdef]{12}?"))
-			this.apiKey = apikey;
-		else
-			this.apiKey = WebServiceCom.getApiKey(username, apikey);
+		this.apiKey = resolveApiKey(username, apikey);
 		this.name = deviceName;
 		this.username = username;
 		if (features != null) {
@@ -231,6 +339,60 @@ public abstract class LhingsDevice {
 		initDevice();
 	}
 
+	/**
+	 * Returns the given apikey, or the apikey of the account if a password was
+	 * given. While a fleet bootstrap is running, apikeys obtained from a
+	 * password are remembered, so that the devices of the same account it
+	 * creates do not ask for it again.
+	 */
+	private static String resolveApiKey(String username, String apikeyOrPassword) throws IOException, LhingsException {
+		if (apikeyOrPassword.matches("^[0-9abcdef]{8}?-[0-9abcdef]{4}?-[0-9abcdef]{4}?-[0-9abcdef]{4}?-[0-9abcdef]{12}?"))
+			return apikeyOrPassword;
+		String cacheKey = username + " " + DigestUtils.sha256Hex(apikeyOrPassword);
+		synchronized (apiKeys) {
+			String apiKey = apiKeys.get(cacheKey);
+			if (apiKey != null)
+				return apiKey;
+		}
+		String apiKey = WebServiceCom.getApiKey(username, apikeyOrPassword);
+		synchronized (apiKeys) {
+			if (apiKeyCachers > 0)
+				apiKeys.put(cacheKey, apiKey);
+		}
+		return apiKey;
+	}
+
+	/**
+	 * Remembers the apikeys obtained from passwords until the matching call
+	 * to <code>endApiKeyCaching()</code>.
+	 */
+	static void beginApiKeyCaching() {
+		synchronized (apiKeys) {
+			apiKeyCachers++;
+		}
+	}
+
+	/**
+	 * Forgets the apikeys remembered, once every call to
+	 * <code>beginApiKeyCaching()</code> has been matched.
+	 */
+	static void endApiKeyCaching() {
+		synchronized (apiKeys) {
+			if (--apiKeyCachers == 0)
+				apiKeys.clear();
+		}
+	}
+
+	/**
+	 * Forgets the given apikey if it was remembered, so that a revoked apikey
+	 * is asked for again.
+	 */
+	private static void forgetApiKey(String apiKey) {
+		synchronized (apiKeys) {
+			apiKeys.values().remove(apiKey);
+		}
+	}
+
 	/**
 	 * Performs all operations needed before starting the device
 	 *
@@ -258,6 +420,15 @@ public abstract class LhingsDevice {
 	 */
 	private void autoconfigure() throws InitializationException {
 		Class<?> deviceClass = this.getClass();
+		// features are only known at runtime, so generated metadata can only
+		// describe devices without them
+		if (features.isEmpty()) {
+			DeviceMetadata metadata = DeviceMetadata.forClass(deviceClass);
+			if (metadata != null) {
+				configureFromMetadata(metadata);
+				return;
+			}
+		}
 		Map<String, Object> deviceDescriptor = new HashMap<String, Object>();
 		List<com.lhings.java.model.Event> eventList = new ArrayList<com.lhings.java.model.Event>();
 		// inspect class to identify descriptor fields and status components
@@ -383,6 +554,7 @@ public abstract class LhingsDevice {
 
 				eventList.add(eventToAdd);
 				eventDefinitions.add(eventName);
+				eventEncoders.put(eventName, new EventEncoder(eventName, eventToAdd.getComponents()));
 			}
 
 		}
@@ -410,9 +582,39 @@ public abstract class LhingsDevice {
 			}
 		}
 
+		// prepare invokers once, actions are looked up by the raw bytes of their name
+		for (String actionName : actionDefinitions.keySet()) {
+			ActionInvoker invoker = new ActionInvoker(actionName, actionMethods.get(actionName), actionDefinitions.get(actionName));
+			actionInvokers.put(new ByteArrayKey(actionName.getBytes(Charset.forName("utf-8"))), invoker);
+		}
+		statusCodec = new StatusCodec(statusDefinitions, statusFields);
+
 		jsonDescriptor = new JSONObject(deviceDescriptor).toString();
 	}
 
+	/**
+	 * Configures the device from the metadata generated at compile time for
+	 * its class, without inspecting it by reflection.
+	 */
+	private void configureFromMetadata(DeviceMetadata metadata) {
+		List<com.lhings.java.model.Action> actions = metadata.getActions();
+		for (int j = 0; j < actions.size(); j++) {
+			String actionName = actions.get(j).getName();
+			actionDefinitions.put(actionName, actions.get(j));
+			actionInvokers.put(new ByteArrayKey(actionName.getBytes(Charset.forName("utf-8"))), new ActionInvoker(metadata, j, this));
+		}
+		for (com.lhings.java.model.StatusComponent statusComponent : metadata.getStatusComponents()) {
+			statusDefinitions.put(statusComponent.getName(), statusComponent);
+		}
+		for (com.lhings.java.model.Event event : metadata.getEvents()) {
+			eventDefinitions.add(event.getName());
+			eventEncoders.put(event.getName(), new EventEncoder(event.getName(), event.getComponents()));
+		}
+		statusCodec = new StatusCodec(metadata, this);
+		jsonDescriptor = metadata.getDescriptor();
+		log.debug("Device " + name + " configured from generated metadata.");
+	}
+
 	private com.lhings.java.model.Action autoconfigureAction(MethodOrFieldToInstanceMapper methodMapper) throws InitializationException {
 		Method actionMethod = methodMapper.getMethod();
 		Action action = actionMethod.getAnnotation(Action.class);
@@ -524,12 +726,42 @@ public abstract class LhingsDevice {
 	}
 
 	/**
-	 * Start the device. The device starts session in Lhings and executes the
-	 * loop() method periodically.
-	 * 
+	 * Start the device. The device executes the loop() method periodically
+	 * and starts session in Lhings. This method returns at once: the session
+	 * is started in the background, retrying with increasing waiting times if
+	 * the server cannot be reached. Use <code>getStartFuture()</code> or
+	 * <code>addStartListener()</code> to know when the session is started.
+	 * Until then, events are kept in the outbox if it is enabled.
+	 *
 	 * @throws LhingsException
 	 */
 	public void start() throws LhingsException {
+		start(false);
+	}
+
+	/**
+	 * Starts the device, making the first attempt to start session in the
+	 * calling thread if <code>firstAttemptInline</code> is true. Retries, if
+	 * needed, are always made in the background.
+	 */
+	void start(boolean firstAttemptInline) throws LhingsException {
+		// a device stopped before starts a new session, with a future of its
+		// own unless nobody has seen the outcome of the previous one yet
+		if (startFuture.isDone())
+			startFuture = new StartFuture();
+		sessionAttempts = 0;
+		// the rest of the state of the previous run is reset too, so that
+		// a device detached and attached again behaves as a new one
+		descriptorSent = false;
+		loopRunning.set(false);
+		replayPending.set(false);
+		if (outbox != null && outbox.isClosed()) {
+			try {
+				outbox = new Outbox(outbox.getDirectory(), outbox.getSegmentSize(), outbox.getMaxSegments());
+			} catch (IOException e) {
+				throw new InitializationException("Outbox of device " + name + " could not be opened again: " + e.getMessage());
+			}
+		}
 		setup();
 		if (socketMan == null)
 			socketMan = (SocketManager) new TCPSocketManager(); // defaulting to
@@ -537,21 +769,67 @@ public abstract class LhingsDevice {
 																// communication
 		for (Feature feature : features)
 			feature.setup();
-		postman = ListenerThread.getInstance(this, socketMan);
-
-		if (sharedTimer == null) {
-			sharedTimer = Executors.newScheduledThreadPool(threads);
-			log.info("Initialized shared timer with " + threads + " execution threads.");
+		// the shared resources are kept while there is some device registered
+		DeviceRegistry.register(this);
+		try {
+			postman = ListenerThread.getInstance(this, socketMan);
+		} catch (LhingsException e) {
+			DeviceRegistry.unregister(this);
+			throw e;
 		}
+		postman.register(uuid, messageHandler);
+
+		synchronized (LhingsDevice.class) {
+			int min = minThreads > 0 ? minThreads : threads;
+			int max = maxThreads > 0 ? maxThreads : threads;
+			if (sharedTimer == null) {
+				sharedTimer = new ElasticScheduledExecutor(Math.min(max, Math.max(min, threads)), min, max);
+				log.info("Initialized shared timer with " + sharedTimer.getCorePoolSize() + " execution threads"
+						+ (min < max ? ", resizable from " + min + " to " + max + " threads." : "."));
+			}
+			// loops of devices and features with the same period are run
+			// together, in one tick of the shared timer, split in as many
+			// shards as threads the timer has; the workers that run the shards
+			// are resized with the timer, and their lag makes it grow
+			if (periodicTasks == null) {
+				final PeriodicGroupScheduler scheduler = new PeriodicGroupScheduler(sharedTimer, sharedTimer.getCorePoolSize());
+				sharedTimer.setAttachedPool(new ElasticScheduledExecutor.AttachedPool() {
+					public void resize(int threads) {
+						scheduler.setShards(threads);
+					}
 
-		sendDescriptor();
-		if (!startSession())
-			return;
-		Runnable keepAliveTask = new Runnable() {
-			public void run() {
-				sendKeepAlive();
+					public long takeLagNanos() {
+						return scheduler.takeLagNanos();
+					}
+				});
+				periodicTasks = scheduler;
 			}
-		};
+			if (inboundExecutor == null)
+				inboundExecutor = new StripedExecutor("thr-inbound");
+			if (deliveryExecutor == null)
+				deliveryExecutor = new StripedExecutor("thr-delivery", DELIVERY_THREADS);
+			if (connectExecutor == null)
+				connectExecutor = Executors.newFixedThreadPool(CONNECT_THREADS, new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "thr-connect-" + count.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+			if (virtualThreads && virtualExecutor == null) {
+				virtualExecutor = VirtualThreads.newVirtualThreadPerTaskExecutor("thr-virtual");
+				if (virtualExecutor != null)
+					virtualInboundExecutor = new StripedExecutor(virtualExecutor);
+			}
+		}
+		if (virtualThreads && virtualExecutor == null) {
+			log.warn("Virtual threads are not available in this JVM, Java 21 or newer is needed. Device " + name
+					+ " will run on the threads of the shared timer.");
+			virtualThreads = false;
+		}
+		stopped = false;
 
 		Runnable loopTask = new Runnable() {
 
@@ -559,79 +837,437 @@ public abstract class LhingsDevice {
 				launchLoop();
 			}
 		};
+		if (virtualThreads) {
+			// the tick only hands the loop to a virtual thread, and skips it
+			// while the previous one is still running
+			final Runnable virtualLoopTask = new Runnable() {
+				public void run() {
+					try {
+						launchLoop();
+					} finally {
+						loopRunning.set(false);
+					}
+				}
+			};
+			loopTask = new Runnable() {
+				public void run() {
+					if (loopRunning.compareAndSet(false, true))
+						virtualExecutor.execute(virtualLoopTask);
+					else
+						loopsSkipped.incrementAndGet();
+				}
+			};
+		}
+
+		loopPeriodNanos = (long) (1000000000d / loopFrequency);
+		nextLoopStart = 0;
+		loopScheduler = periodicTasks.schedule(loopTask, loopPeriodNanos, TimeUnit.NANOSECONDS, fixedRateLoop);
+		for (Feature feature : features) {
+			if (feature.hasOwnPeriod())
+				feature.schedule(periodicTasks, virtualThreads ? virtualExecutor : sharedTimer, getFeatureExecutor());
+		}
+
+		if (firstAttemptInline)
+			connect();
+		else
+			getConnectExecutor().execute(connectTask);
+	}
 
-		long loopDelay = (long) (1000 / loopFrequency);
+	private final Runnable connectTask = new Runnable() {
+		public void run() {
+			connect();
+		}
+	};
+
+	// the shared timer only waits for the time of the next attempt, which is
+	// then made by the connect executor
+	private final Runnable retryTask = new Runnable() {
+		public void run() {
+			if (stopped)
+				return;
+			ExecutorService executor = getConnectExecutor();
+			if (executor != null)
+				executor.execute(connectTask);
+		}
+	};
+
+	private static synchronized ExecutorService getConnectExecutor() {
+		return connectExecutor;
+	}
 
-		keepAliveScheduler = sharedTimer.scheduleWithFixedDelay(keepAliveTask, 0, TIME_BETWEEN_KEEPALIVES_MILLIS, TimeUnit.MILLISECONDS);
-		loopScheduler = sharedTimer.scheduleWithFixedDelay(loopTask, 1000, loopDelay, TimeUnit.MILLISECONDS);
+	private static synchronized StripedExecutor getDeliveryExecutor() {
+		return deliveryExecutor;
+	}
+
+	// makes the deliveries of this device in its lane of the delivery executor
+	private final Executor deliveries = new Executor() {
+		public void execute(Runnable delivery) {
+			StripedExecutor executor = getDeliveryExecutor();
+			if (executor == null)
+				throw new RejectedExecutionException("Device " + name + " is stopped.");
+			executor.execute(LhingsDevice.this, delivery);
+		}
+	};
+
+	// set while a replay of the outbox is queued or running
+	private final AtomicBoolean replayPending = new AtomicBoolean();
+
+	private final Runnable replayTask = new Runnable() {
+		public void run() {
+			try {
+				replayOutbox();
+			} finally {
+				replayPending.set(false);
+			}
+		}
+	};
+
+	/**
+	 * Makes one attempt to start session. If it fails but the error is
+	 * recoverable, schedules the next attempt with the shared timer.
+	 */
+	private void connect() {
+		if (stopped || sessionStarted)
+			return;
+		if (!descriptorSent) {
+			descriptorSent = true;
+			if (!sendDescriptor())
+				return;
+		}
+		try {
+			WebServiceCom.startSession(this);
+		} catch (IOException e) {
+			log.warn(e.getMessage());
+			retryConnect();
+			return;
+		} catch (DeviceDoesNotExistException ex) {
+			log.error("Unable to connect device to Lhings. Device is not recognized by the server. Did you delete it on Lhings? Remove the appropriate entry from file uuid.list and try again. Exiting.");
+			startFailed(ex);
+			return;
+		} catch (UnauthorizedException ex) {
+			log.error("Unauthorized. Unable to connect device with uuid to server: provided credentials (either api key or username/password) are not valid. Exiting.");
+			forgetApiKey(apiKey);
+			startFailed(ex);
+			return;
+		} catch (LhingsException e) {
+			log.warn(e.getMessage());
+			retryConnect();
+			return;
+		}
+		log.info("Device started session succesfully.");
+		sessionStarted();
+	}
+
+	private void retryConnect() {
+		if (stopped)
+			return;
+		// exponential backoff with a cap, and jitter so that devices that lost
+		// the server at the same time do not retry at the same time
+		long waitingTime = INITIAL_TIME_BETWEEN_STARTSESSION_RETRIES_MILLIS << Math.min(sessionAttempts, 16);
+		waitingTime = Math.min(waitingTime, MAX_TIME_BETWEEN_STARTSESSION_RETRIES_MILLIS);
+		waitingTime = waitingTime / 2 + (long) (random.nextDouble() * (waitingTime / 2));
+		sessionAttempts++;
+		log.warn("Unable to start session. Retrying again in " + waitingTime / 1000 + " seconds...");
+		connectScheduler = sharedTimer.schedule(retryTask, waitingTime, TimeUnit.MILLISECONDS);
+	}
+
+	private void sessionStarted() {
+		synchronized (this) {
+			if (stopped)
+				return;
+			sessionStarted = true;
+			sessionAttempts = 0;
+			// keepalives are sent by the listener thread for the whole
+			// connection
+			postman.startKeepalives(uuid);
+			if (outbox != null) {
+				// the timer only triggers the replay, which is made in the lane
+				// of the device of the delivery executor
+				Runnable outboxTask = new Runnable() {
+					public void run() {
+						if (!replayPending.compareAndSet(false, true))
+							return;
+						try {
+							deliveries.execute(replayTask);
+						} catch (RuntimeException e) {
+							replayPending.set(false);
+						}
+					}
+				};
+				outboxScheduler = sharedTimer.scheduleWithFixedDelay(outboxTask, 0, TIME_BETWEEN_OUTBOX_REPLAYS_MILLIS, TimeUnit.MILLISECONDS);
+			}
+		}
 		log.info("Device started");
+		startFuture.complete(true);
+		for (StartListener listener : startListeners) {
+			try {
+				listener.sessionStarted(this);
+			} catch (RuntimeException e) {
+				log.error("Start listener failed: " + e.getMessage(), e);
+			}
+		}
+	}
+
+	private void startFailed(LhingsException reason) {
+		stop();
+		startFuture.complete(false);
+		for (StartListener listener : startListeners) {
+			try {
+				listener.startFailed(this, reason);
+			} catch (RuntimeException e) {
+				log.error("Start listener failed: " + e.getMessage(), e);
+			}
+		}
+	}
+
+	/**
+	 * Returns a future that completes with true when the device starts
+	 * session in Lhings, or with false if the server rejects the device or
+	 * the device is stopped before. Every start of a stopped device has a new
+	 * future, so it must be obtained again after restarting the device.
+	 */
+	public Future<Boolean> getStartFuture() {
+		return startFuture;
+	}
+
+	/**
+	 * Adds a listener that is notified when the device starts session in
+	 * Lhings, or when the server rejects it.
+	 */
+	public void addStartListener(StartListener listener) {
+		startListeners.add(listener);
+	}
+
+	public void removeStartListener(StartListener listener) {
+		startListeners.remove(listener);
+	}
+
+	/**
+	 * Future completed by the device itself when the outcome of the start is
+	 * known.
+	 */
+	private static class StartFuture extends FutureTask<Boolean> {
+		StartFuture() {
+			super(new Callable<Boolean>() {
+				public Boolean call() {
+					throw new IllegalStateException("Start future cannot be run.");
+				}
+			});
+		}
+
+		void complete(boolean started) {
+			set(Boolean.valueOf(started));
+		}
 	}
 
 	public void setSettings(Map<String, Object> data) throws IOException, LhingsException {
+		throttleRequest();
 		WebServiceCom.setCloudData(this, data);
 	}
 
 	public String getSettings() throws IOException, LhingsException {
+		throttleRequest();
 		return WebServiceCom.getCloudData(this);
 	}
 
+	/**
+	 * Limits the rate at which this device calls Lhings for the given kind of
+	 * operation, to keep runaway code from flooding the server. Calls over
+	 * the limit are blocked, dropped or coalesced according to the policy of
+	 * the limit. There are no limits by default.
+	 *
+	 * @param operation
+	 *            The kind of calls to limit.
+	 * @param limit
+	 *            The limit, or null to remove it.
+	 */
+	public void setRateLimit(RateLimit.Operation operation, RateLimit limit) {
+		if (limit == null)
+			rateLimiters.remove(operation);
+		else
+			rateLimiters.put(operation, new RateLimiter(limit));
+	}
+
+	/**
+	 * Returns the counters of the calls of the given kind made under its rate
+	 * limit, or null if there is no limit for them.
+	 */
+	public ThrottleStatistics getThrottleStatistics(RateLimit.Operation operation) {
+		RateLimiter limiter = rateLimiters.get(operation);
+		return limiter == null ? null : limiter.getStatistics();
+	}
+
+	private void throttleRequest() throws RateLimitExceededException {
+		RateLimiter limiter = rateLimiters.get(RateLimit.Operation.REQUEST);
+		if (limiter != null && !limiter.admit(null, null, null, null))
+			throw new RateLimitExceededException("Request of device " + name + " dropped, it exceeds the rate limit of " + limiter.getLimit() + ".");
+	}
+
+	private static synchronized ScheduledExecutorService getSharedTimer() {
+		return sharedTimer;
+	}
+
 	private void launchLoop() {
+		long start = System.nanoTime();
+		if (nextLoopStart != 0)
+			loopJitter.record(Math.abs(start - nextLoopStart));
 		try {
 			loop();
 			for (Feature feature : features) {
 				feature.loopEvery();
 			}
-			processMessage();
 		} catch (Exception e) {
 			StringWriter sw = new StringWriter();
 			e.printStackTrace(new PrintWriter(sw));
-			log.error("Unexpected exception thrown while processing message: {}. See stack trace for further details. \n {}", e.getMessage(), sw.toString());
+			log.error("Unexpected exception thrown while executing loop: {}. See stack trace for further details. \n {}", e.getMessage(), sw.toString());
 		}
+		long end = System.nanoTime();
+		long duration = end - start;
+		loopDuration.record(duration);
+		// at a fixed rate executions are due at multiples of the period, unless
+		// some were missed; with a fixed delay they are due a period after the
+		// end of the previous one
+		if (fixedRateLoop && nextLoopStart != 0 && start - nextLoopStart < loopPeriodNanos)
+			nextLoopStart += loopPeriodNanos;
+		else if (fixedRateLoop)
+			nextLoopStart = start + loopPeriodNanos;
+		else
+			nextLoopStart = end + loopPeriodNanos;
+		if (duration > loopPeriodNanos) {
+			loopOverruns.incrementAndGet();
+			LoopOverrunListener listener = loopOverrunListener;
+			if (listener != null) {
+				try {
+					listener.loopOverrun(this, duration, loopPeriodNanos);
+				} catch (RuntimeException e) {
+					log.error("Loop overrun listener failed: " + e.getMessage(), e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the statistics of the executions of <code>loop()</code> since
+	 * the device was started.
+	 */
+	public LoopStatistics getLoopStatistics() {
+		return new LoopStatistics(loopPeriodNanos, loopOverruns.get(), loopsSkipped.get(), loopDuration.copy(), loopJitter.copy());
+	}
+
+	/**
+	 * Sets the listener notified every time an execution of
+	 * <code>loop()</code> takes longer than the period of the loop, or null to
+	 * remove it.
+	 */
+	public void setLoopOverrunListener(LoopOverrunListener loopOverrunListener) {
+		this.loopOverrunListener = loopOverrunListener;
 	}
 
 	/**
 	 * Stops the device
 	 */
 	public void stop() {
-		try {
-			WebServiceCom.endSession(this);
-		} catch (IOException e) {
-			log.warn("Session could not be ended due to a networking failure");
-		} catch (LhingsException e) {
-			log.warn("Session could not be ended due to bad credentials, bad request, or the device was deleted on server side while online");
+		boolean endSession;
+		synchronized (this) {
+			stopped = true;
+			endSession = sessionStarted;
+			sessionStarted = false;
 		}
-		keepAliveScheduler.cancel(true);
-		loopScheduler.cancel(true);
+		if (connectScheduler != null)
+			connectScheduler.cancel(false);
+		if (postman != null)
+			postman.unregister(uuid);
+		startFuture.complete(false);
+		if (endSession) {
+			try {
+				WebServiceCom.endSession(this);
+			} catch (IOException e) {
+				log.warn("Session could not be ended due to a networking failure");
+			} catch (LhingsException e) {
+				log.warn("Session could not be ended due to bad credentials, bad request, or the device was deleted on server side while online");
+			}
+		}
+		if (loopScheduler != null)
+			loopScheduler.cancel();
+		for (Feature feature : features) {
+			if (feature.hasOwnPeriod())
+				feature.unschedule();
+		}
+		if (outboxScheduler != null)
+			outboxScheduler.cancel(false);
+		// pending entries are flushed to disk, and replayed when the device
+		// is started again
+		if (outbox != null)
+			outbox.close();
+		synchronized (LhingsDevice.class) {
+			StripedExecutor inbound = getInboundExecutor();
+			if (inbound != null)
+				inbound.remove(uuid);
+			if (deliveryExecutor != null)
+				deliveryExecutor.remove(this);
+		}
+		synchronized (actionResponses) {
+			actionResponses.clear();
+		}
+		DeviceRegistry.unregister(this);
 		log.info("Successfully stopped device " + this.getName() + ".");
 	}
 
-	private void processMessage() throws ActionExecutionException {
-		STUNMessage message;
-		synchronized (postman) {
-			byte[] rawMessage = postman.readMessage();
-			if (rawMessage == null) {
-				return;
+	/**
+	 * Shuts down the executors shared by all devices, once the last device is
+	 * detached from the registry. They are created again when a device starts.
+	 */
+	static void releaseSharedExecutors() {
+		synchronized (LhingsDevice.class) {
+			if (sharedTimer != null) {
+				sharedTimer.shutdown();
+				sharedTimer = null;
 			}
-			message = STUNMessage.getSTUNMessage(rawMessage);
-			if (message == null) {
-				log.warn("Could not process message from server: not well formed.");
-				postman.remove();
-				return;
+			if (periodicTasks != null) {
+				periodicTasks.shutdown();
+				periodicTasks = null;
 			}
-			byte[] uuidBytes = message.getAttribute(LyncnatProtocol.attrLyncportId);
-			if (uuidBytes == null) {
-				log.warn("Could not process message from server: null UUID returned from server");
-				postman.remove();
-				return;
+			if (inboundExecutor != null) {
+				inboundExecutor.shutdown();
+				inboundExecutor = null;
 			}
-			UUID messageUuid = UUIDUtil.uuid(uuidBytes);
-			if (!this.uuid.equalsIgnoreCase(messageUuid.toString())) {
-				// return but do not remove, message could be addressed to other
-				// device
-				return;
+			if (featureExecutor != null) {
+				featureExecutor.shutdown();
+				featureExecutor = null;
+			}
+			if (connectExecutor != null) {
+				connectExecutor.shutdown();
+				connectExecutor = null;
 			}
-			postman.remove();
+			if (deliveryExecutor != null) {
+				deliveryExecutor.shutdown();
+				deliveryExecutor = null;
+			}
+			if (virtualExecutor != null) {
+				virtualExecutor.shutdown();
+				virtualExecutor = null;
+				virtualInboundExecutor = null;
+			}
+		}
+	}
+
+	/**
+	 * Handles a message addressed to this device as soon as the listener
+	 * thread receives it, handing actions and status requests to the inbound
+	 * executor so that those of this device run in order without delaying
+	 * other devices. Messages are never polled from the loop.
+	 */
+	private final MessageHandler messageHandler = new MessageHandler() {
+		public void messageReceived(STUNMessage message) {
+			processMessage(message);
+		}
+
+		public byte[] keepAliveMessage() {
+			return STUNMessageFactory.getInstance(apiKey).getKeepAliveMessage(username, uuid).getBytes();
 		}
+	};
+
+	private void processMessage(STUNMessage message) {
 		log.debug("Processing message");
 
 		if (message.isErrorResponse() && (Integer) message.getErrorCode()[0] == LyncnatProtocol.errBadTimestamp) {
@@ -644,54 +1280,66 @@ public abstract class LhingsDevice {
 				sendKeepAlive();
 			}
 		}
+		final STUNMessage request = message;
 		switch (message.getMethod()) {
 		case LyncnatProtocol.mAction:
 			log.debug("Received action message");
-			performAction(message);
+			getInboundExecutor().execute(uuid, new Runnable() {
+				public void run() {
+					try {
+						performAction(request);
+					} catch (ActionExecutionException e) {
+						StringWriter sw = new StringWriter();
+						e.printStackTrace(new PrintWriter(sw));
+						log.error("Unexpected exception thrown while processing message: {}. See stack trace for further details. \n {}", e.getMessage(), sw.toString());
+					}
+				}
+			});
 			break;
 		case LyncnatProtocol.mStatusRequest:
 			log.debug("Received status request message");
-			answerStatus(message);
+			getInboundExecutor().execute(uuid, new Runnable() {
+				public void run() {
+					answerStatus(request);
+				}
+			});
 			break;
 		}
 	}
 
+	private StripedExecutor getInboundExecutor() {
+		return virtualThreads ? virtualInboundExecutor : inboundExecutor;
+	}
+
+	/**
+	 * Returns the executor that runs the features that have an execution lane
+	 * of their own.
+	 */
+	private StripedExecutor getFeatureExecutor() {
+		if (virtualThreads)
+			return virtualInboundExecutor;
+		synchronized (LhingsDevice.class) {
+			if (featureExecutor == null)
+				featureExecutor = new StripedExecutor("thr-feature");
+			return featureExecutor;
+		}
+	}
+
 	private void answerStatus(STUNMessage message) {
-		// build inputs for STUNMessageFactory.buildArgumentsAttribute
-		List<Argument> arguments = new ArrayList<Argument>();
-		Map<String, Object> argValues = new HashMap<String, Object>();
-		for (String statusCompName : statusDefinitions.keySet()) {
-			com.lhings.java.model.StatusComponent statusComponent = statusDefinitions.get(statusCompName);
-			Argument arg = new Argument(statusCompName, statusComponent.getType());
-			arguments.add(arg);
-			// retrieve current value of the corresponding field
-			MethodOrFieldToInstanceMapper fieldMapper = statusFields.get(statusCompName);
-			Field field = fieldMapper.getField();
-			field.setAccessible(true);
-			try {
-				Object value = field.get(fieldMapper.getInstance());
-				argValues.put(statusCompName, value);
-			} catch (IllegalArgumentException e) {
-				postman.send(STUNMessageFactory.getInstance(apiKey)
-						.getErrorResponse(message, LyncnatProtocol.errNotAvailable, "Value for " + statusCompName + " could not be retrieved", username)
-						.getBytes());
-				log.error("Value for " + statusCompName + " could not be retrieved");
-				return;
-			} catch (IllegalAccessException e) {
-				postman.send(STUNMessageFactory.getInstance(apiKey)
-						.getErrorResponse(message, LyncnatProtocol.errNotAvailable, "Value for " + statusCompName + " could not be retrieved", username)
-						.getBytes());
-				log.error("Value for " + statusCompName + " could not be retrieved");
-				return;
-			}
+		byte[] argsAttr;
+		try {
+			argsAttr = statusCodec.encode();
+		} catch (LhingsException e) {
+			postman.send(STUNMessageFactory.getInstance(apiKey).getErrorResponse(message, LyncnatProtocol.errNotAvailable, e.getMessage(), username)
+					.getBytes(), Priority.RESPONSE);
+			log.error(e.getMessage());
+			return;
 		}
-		// build arguments attribute of the response
-		byte[] argsAttr = STUNMessageFactory.buildArgumentsAttribute(arguments, argValues);
 		Map<Integer, byte[]> attrs = new HashMap<Integer, byte[]>();
 		attrs.put(LyncnatProtocol.attrArguments, argsAttr);
 		STUNMessage response = STUNMessageFactory.getInstance(apiKey).getSuccessResponse(username, message, true, attrs);
 		// send response
-		postman.send(response.getBytes());
+		postman.send(response.getBytes(), Priority.RESPONSE);
 	}
 
 	/**
@@ -707,7 +1355,68 @@ public abstract class LhingsDevice {
 	}
 
 	/**
-	 * Sends an event with payload to Lhings.
+	 * Sends an event whose payload carries the given values of the components
+	 * declared in its {@link com.lhings.java.annotations.Event} annotation, in
+	 * the same order. The payload is a JSON array with the name and value of
+	 * each component; values of timestamp components can be given as
+	 * {@link java.util.Date} or as seconds since the epoch.
+	 *
+	 * This method has a name of its own so that an event with a single
+	 * string component is encoded like any other, instead of binding to
+	 * {@link #sendEvent(String, String)}, which sends the payload as is.
+	 *
+	 * @param name
+	 *            The name of the event. If no such event is defined for this
+	 *            device no event is sent but a warning is shown in the log of
+	 *            the application.
+	 * @param componentValues
+	 *            The values of the components of the event. If they do not
+	 *            match its components no event is sent but a warning is shown
+	 *            in the log of the application.
+	 */
+	protected void sendEventValues(String name, Object... componentValues) {
+		EventEncoder encoder = eventEncoders.get(name);
+		if (encoder == null) {
+			log.warn("Device is not capable of sending event named " + name);
+			return;
+		}
+		String payload;
+		try {
+			payload = encoder.encode(componentValues);
+		} catch (IllegalArgumentException e) {
+			log.warn("Event " + name + " not sent: " + e.getMessage());
+			return;
+		}
+		sendEvent(name, payload);
+	}
+
+	/**
+	 * Sends an event whose payload carries the given values of the components
+	 * declared in its {@link com.lhings.java.annotations.Event} annotation, by
+	 * name. Components without a value are sent as null.
+	 *
+	 * @see #sendEventValues(String, Object...)
+	 */
+	protected void sendEventValues(String name, Map<String, ?> componentValues) {
+		EventEncoder encoder = eventEncoders.get(name);
+		if (encoder == null) {
+			log.warn("Device is not capable of sending event named " + name);
+			return;
+		}
+		String payload;
+		try {
+			payload = encoder.encode(componentValues);
+		} catch (IllegalArgumentException e) {
+			log.warn("Event " + name + " not sent: " + e.getMessage());
+			return;
+		}
+		sendEvent(name, payload);
+	}
+
+	/**
+	 * Sends an event with payload to Lhings. The payload is sent as is; use
+	 * {@link #sendEventValues(String, Object...)} to send the values of the
+	 * components of the event.
 	 *
 	 * @param name
 	 *            The name of the event. If no such event is defined for this
@@ -716,18 +1425,41 @@ public abstract class LhingsDevice {
 	 * @param payload
 	 *            The payload of the event.
 	 */
-	protected void sendEvent(String name, String payload) {
+	protected void sendEvent(final String name, final String payload) {
 		// check event is an allowed one
 		if (!eventDefinitions.contains(name)) {
 			log.warn("Device is not capable of sending event named " + name);
 			return;
 		}
 
+		RateLimiter limiter = rateLimiters.get(RateLimit.Operation.EVENT);
+		if (limiter != null && !limiter.admit(name, new Runnable() {
+			public void run() {
+				deliverEvent(name, payload);
+			}
+		}, getSharedTimer(), deliveries)) {
+			log.debug("Event " + name + " held back by rate limit.");
+			return;
+		}
+		deliverEvent(name, payload);
+	}
+
+	private void deliverEvent(String name, String payload) {
+		// keep the order of the events that are waiting in the outbox, and
+		// queue them until the session is started
+		if (outbox != null && (!sessionStarted || !outbox.isEmpty())) {
+			storeInOutbox(new OutboxEntry(OutboxEntry.Type.EVENT, name, payload));
+			return;
+		}
+
 		try {
 			WebServiceCom.sendEvent(this, name, payload);
 			log.info("Sent event " + name);
 		} catch (IOException e) {
-			log.warn(e.getMessage());
+			if (outbox != null)
+				storeInOutbox(new OutboxEntry(OutboxEntry.Type.EVENT, name, payload));
+			else
+				log.warn(e.getMessage());
 		} catch (DeviceDoesNotExistException ex) {
 			log.error("Unable to send event "
 					+ name
@@ -741,168 +1473,103 @@ public abstract class LhingsDevice {
 	}
 
 	private void performAction(STUNMessage message) throws ActionExecutionException {
+		TransactionID transactionId = message.getTransactionID();
+		byte[] cachedResponse;
+		synchronized (actionResponses) {
+			cachedResponse = actionResponses.get(transactionId);
+		}
+		if (cachedResponse != null) {
+			log.debug("Action with transaction id " + transactionId + " already executed, sending the same response again.");
+			postman.send(cachedResponse, Priority.RESPONSE);
+			return;
+		}
+
 		byte[] rawActionName = message.getAttribute(LyncnatProtocol.attrName);
 		if (rawActionName == null) {
 			log.debug("Action not executed: name of action missing in received message");
 			return;
 		}
-		String actionName = new String(rawActionName, Charset.forName("utf-8"));
-		Method actionMethod = actionMethods.get(actionName).getMethod();
-		Object instance = actionMethods.get(actionName).getInstance();
-		if (actionMethod == null) {
-			log.debug("Action not executed: this device has no action named " + actionName + ".");
+		ActionInvoker invoker = actionInvokers.get(new ByteArrayKey(rawActionName));
+		if (invoker == null) {
+			log.debug("Action not executed: this device has no action named " + new String(rawActionName, Charset.forName("utf-8")) + ".");
 			return;
 		}
-		actionMethod.setAccessible(true);
-		com.lhings.java.model.Action actionDefinition = actionDefinitions.get(actionName);
-		String payload = null;
-		if (actionDefinition.isPayloadNeeded()) {
-			byte[] rawPayload = message.getAttribute(LyncnatProtocol.attrPayload);
-			if (rawPayload == null) {
-				log.warn("Action " + actionName + " not executed: action requires a payload but it was not provided.");
+		Object[] args = null;
+		if (invoker.hasArguments()) {
+			args = invoker.readArguments(message);
+			if (args == null) {
 				return;
 			}
-			payload = new String(rawPayload, Charset.forName("utf-8"));
-			Object[] args = new Object[1];
-			args[0] = payload;
-
-		}
-		int numExpectedArguments = actionMethod.getParameterTypes().length;
-		if (numExpectedArguments == 0 || (numExpectedArguments == 1 && actionDefinition.isPayloadNeeded())) {
-			// action has no arguments, perform action now
-			Object[] args;
-			if (actionDefinition.isPayloadNeeded()) {
-				args = new Object[1];
-				args[0] = payload;
-			} else {
-				args = null;
-			}
-			try {
-				actionMethod.invoke(instance, args);
-			} catch (IllegalAccessException e) {
-				log.error("Error trying to invoke action " + actionName + ".", e);
-				return;
-			} catch (IllegalArgumentException e) {
-				log.error("Error trying to invoke action " + actionName + ", wrong arguments.", e);
-				return;
-			} catch (InvocationTargetException e) {
-				throw new ActionExecutionException(e);
-			}
-			// send success response
-			postman.send(STUNMessageFactory.getInstance(apiKey).getSuccessResponse(message).getBytes());
-			return;
-		}
-
-		byte[] rawArgs = message.getAttribute(LyncnatProtocol.attrArguments);
-		if (rawArgs == null) {
-			log.warn("Action " + actionName + " not executed: malformed action message, arguments attribute was missing.");
-			return;
-		}
-
-		Map<String, Object> argumentValues = STUNMessageFactory.processArgumentsAttribute(rawArgs, actionDefinitions.get(actionName));
-		if (argumentValues.keySet().size() != numExpectedArguments) {
-			log.warn("Action " + actionName + " not executed: expected " + numExpectedArguments + " but " + argumentValues.keySet().size() + " where provided.");
-			return;
-		}
-		Object[] args = generateArgsForActionInvocation(actionName, actionMethod.getParameterTypes(), argumentValues);
-		if (args == null) {
-			return;
 		}
+		Object result;
 		try {
-			actionMethod.invoke(this, args);
+			result = invoker.invoke(args);
 		} catch (IllegalAccessException e) {
-			log.error("Error trying to invoke action " + actionName + ".", e);
+			log.error("Error trying to invoke action " + invoker.getName() + ".", e);
 			return;
 		} catch (IllegalArgumentException e) {
-			log.error("Error trying to invoke action " + actionName + ", wrong arguments.", e);
+			log.error("Error trying to invoke action " + invoker.getName() + ", wrong arguments.", e);
 			return;
 		} catch (InvocationTargetException e) {
+			// answer retransmissions with the same error instead of running
+			// the action again
+			sendActionResponse(transactionId, STUNMessageFactory.getInstance(apiKey).getErrorResponse(message, LyncnatProtocol.errServerError,
+					"Action " + invoker.getName() + " failed", username));
 			throw new ActionExecutionException(e);
 		}
 
-		// send success response
-		postman.send(STUNMessageFactory.getInstance(apiKey).getSuccessResponse(message).getBytes());
+		// send success response, with the value returned by the action if any
+		Map<Integer, byte[]> resultAttrs = invoker.encodeResult(result);
+		if (resultAttrs == null)
+			sendActionResponse(transactionId, STUNMessageFactory.getInstance(apiKey).getSuccessResponse(message));
+		else
+			sendActionResponse(transactionId, STUNMessageFactory.getInstance(apiKey).getSuccessResponse(message, resultAttrs));
 	}
 
-	private Object[] generateArgsForActionInvocation(String actionName, Class<?>[] parameterTypes, Map<String, Object> argumentValues) {
-		com.lhings.java.model.Action action = actionDefinitions.get(actionName);
-		if (action == null) {
-			log.warn("Action " + actionName + " not executed: no definition for it (check your device descriptor).");
-			return null;
-		}
-		Object[] args = new Object[parameterTypes.length];
-		List<Argument> arguments = action.getInputs();
-		for (int j = 0; j < arguments.size(); j++) {
-			if (arguments.get(j).getType() == "timestamp") {
-				args[j] = new Date(1000 * Long.valueOf(argumentValues.get(arguments.get(j).getName()).toString()));
-			} else
-				args[j] = argumentValues.get(arguments.get(j).getName());
+	private void sendActionResponse(TransactionID transactionId, STUNMessage response) {
+		byte[] bytes = response.getBytes();
+		synchronized (actionResponses) {
+			actionResponses.put(transactionId, bytes);
 		}
-		return args;
+		postman.send(bytes, Priority.RESPONSE);
 	}
 
 	private void sendKeepAlive() {
 		STUNMessage stm = STUNMessageFactory.getInstance(apiKey).getKeepAliveMessage(username, uuid);
 		log.debug("Sending keepalive");
-		postman.send(stm.getBytes());
+		postman.send(stm.getBytes(), Priority.KEEPALIVE);
 	}
 
-	private void sendDescriptor() {
+	/**
+	 * Sends the descriptor of the device to Lhings.
+	 *
+	 * @return false if the server rejected the device, true otherwise.
+	 */
+	private boolean sendDescriptor() {
+		// skip the upload if Lhings already has this very descriptor
+		String descriptorHash = DigestUtils.sha256Hex(jsonDescriptor);
+		if (!forceDescriptorUpload && descriptorHash.equals(descriptorHashes.getProperty(uuid))) {
+			log.info("Descriptor did not change since it was last sent, skipping upload.");
+			return true;
+		}
 		try {
 			WebServiceCom.sendDescriptor(this, jsonDescriptor);
 			log.info("Descriptor sent successfully");
+			descriptorHashes.setProperty(uuid, descriptorHash);
+			updateDescriptorHashes();
 		} catch (IOException e) {
 			log.warn(e.getMessage());
 		} catch (DeviceDoesNotExistException ex) {
 			log.error("Unable to connect device to Lhings. Device is not recognized by the server. Did you delete it on Lhings? Remove the appropriate entry from file uuid.list and try again. Exiting.");
-			this.stop();
+			startFailed(ex);
+			return false;
 		} catch (UnauthorizedException ex) {
 			log.error("Unauthorized. Unable to connect device to server: provided credentials (either api key or username/password) are not valid. Exiting.");
-			this.stop();
+			startFailed(ex);
+			return false;
 		} catch (LhingsException e) {
 			log.warn(e.getMessage());
 		}
-	}
-
-	/**
-	 * Starts session. If session cannot be started, the method retries doubling
-	 * the waiting time between tries each time. This method blocks until
-	 * session is started successfully.
-	 *
-	 * @return true is session is started successfully, false otherwise
-	 */
-	private boolean startSession() {
-		long waitingTime = INITIAL_TIME_BETWEEN_STARTSESSION_RETRIES_MILLIS;
-		boolean started = false;
-		while (!started) {
-			try {
-				WebServiceCom.startSession(this);
-				started = true;
-			} catch (IOException e) {
-				log.warn(e.getMessage());
-			} catch (DeviceDoesNotExistException ex) {
-				log.error("Unable to connect device to Lhings. Device is not recognized by the server. Did you delete it on Lhings? Remove the appropriate entry from file uuid.list and try again. Exiting.");
-				this.stop();
-				return false;
-			} catch (UnauthorizedException ex) {
-				log.error("Unauthorized. Unable to connect device with uuid to server: provided credentials (either api key or username/password) are not valid. Exiting.");
-				this.stop();
-				return false;
-			} catch (LhingsException e) {
-				log.warn(e.getMessage());
-			}
-			if (!started) {
-				// not started but error is recoverable, try again
-				log.warn("Unable to start session. Retrying again in " + waitingTime / 1000 + " seconds...");
-				waitingTime = 2 * waitingTime;
-			}
-			try {
-				Thread.sleep(waitingTime);
-			} catch (InterruptedException e) {
-				e.printStackTrace();
-			}
-		}
-		log.info("Device started session succesfully.");
 		return true;
 	}
 
@@ -911,7 +1578,7 @@ public abstract class LhingsDevice {
 	 * correct and the device was able to start session in Lhings.
 	 */
 	public Boolean isLogged() {
-		return true;
+		return sessionStarted;
 	}
 
 	/**
@@ -1056,11 +1723,25 @@ public abstract class LhingsDevice {
 		this.loopFrequency = loopFrequency;
 	}
 
+	/**
+	 * Executes <code>loop()</code> at a fixed rate instead of with a fixed
+	 * delay between executions. At a fixed rate executions are due at
+	 * multiples of the loop period, so the frequency does not drift when the
+	 * loop takes long, and executions that are late are caught up. By default
+	 * the loop is executed with a fixed delay. It must be called before
+	 * <code>start()</code>.
+	 */
+	public void setFixedRateLoop(boolean fixedRateLoop) {
+		this.fixedRateLoop = fixedRateLoop;
+	}
+
 	/**
 	 * This method returns a list of all the other devices that belong to the
 	 * same account as the calling device. Since this method communicates with
 	 * Lhings over the Internet, the call is blocking. If this is an issue
-	 * consider executing this call in another thread.
+	 * consider executing this call in another thread. Responses can be cached
+	 * for a while using
+	 * {@link WebServiceCom#setCacheTtl(com.lhings.java.http.CachedEndpoint, long)}.
 	 *
 	 * @return A list of Device instances, with the following information: name,
 	 *         uuid and type of the device, and online status.
@@ -1068,11 +1749,32 @@ public abstract class LhingsDevice {
 	 * @throws LhingsException
 	 */
 	public List<Device> getDevices() throws LhingsException, IOException {
+		throttleRequest();
 		return WebServiceCom.deviceList(this);
 	}
 
 	/**
-	 * Retrieves the status of the given device.
+	 * Visits all the other devices that belong to the same account as the
+	 * calling device. Unlike <code>getDevices()</code>, devices are handed to
+	 * the visitor as they are decoded from the response of the server, so
+	 * accounts with a very large number of devices are processed in constant
+	 * memory. This call is blocking.
+	 *
+	 * @param visitor
+	 *            Called once for every device; it can stop the visit early by
+	 *            returning false.
+	 * @throws IOException
+	 * @throws LhingsException
+	 */
+	public void visitDevices(DeviceVisitor visitor) throws LhingsException, IOException {
+		throttleRequest();
+		WebServiceCom.deviceList(this, visitor);
+	}
+
+	/**
+	 * Retrieves the status of the given device. Responses can be cached for a
+	 * while using
+	 * {@link WebServiceCom#setCacheTtl(com.lhings.java.http.CachedEndpoint, long)}.
 	 *
 	 * @param uuid
 	 *            The uuid of the device whose status is to be retrieved.
@@ -1097,9 +1799,30 @@ public abstract class LhingsDevice {
 			return null;
 		}
 
+		throttleRequest();
 		return WebServiceCom.getStatus(this, uuid);
 	}
 
+	/**
+	 * Retrieves the status of several devices in parallel. The number of
+	 * requests run at the same time is bounded, see
+	 * {@link WebServiceCom#setBulkConcurrency(int)}, so the time taken depends
+	 * on that bound rather than on the number of devices. If the uuid of the
+	 * calling device is among the given ones, it is ignored.
+	 *
+	 * @param uuids
+	 *            The uuids of the devices whose status is to be retrieved.
+	 * @return The status of each device that could be retrieved, and the
+	 *         exception raised for each one that could not.
+	 * @throws InterruptedException
+	 *             If the calling thread is interrupted while waiting.
+	 */
+	public BulkStatusResult getStatus(Collection<String> uuids) throws InterruptedException {
+		List<String> others = new ArrayList<String>(uuids);
+		others.removeAll(Collections.singleton(this.uuid));
+		return WebServiceCom.getStatus(this, others);
+	}
+
 	/**
 	 * Stores the value of all the status components of this device in Lhings.
 	 *
@@ -1107,32 +1830,151 @@ public abstract class LhingsDevice {
 	 * @throws IOException
 	 */
 	public void storeStatus() throws IOException, LhingsException {
-		Map<String, Object> statusComponentValues = new HashMap<String, Object>();
-		Set<String> statusComponentNames = statusFields.keySet();
-		for (String statusComponentName : statusComponentNames) {
-			MethodOrFieldToInstanceMapper fieldMapper = statusFields.get(statusComponentName);
-			Field statusComponent = fieldMapper.getField();
-			statusComponent.setAccessible(true);
-			try {
-				Object statusComponentValue = statusComponent.get(fieldMapper.getInstance());
-				statusComponentValues.put(statusComponentName, statusComponentValue);
-			} catch (IllegalArgumentException e) {
-				log.warn("Could not store status for component called " + statusComponentName + ". This device does not have such status component.");
-			} catch (IllegalAccessException e) {
-				log.warn("Could not store status for component called " + statusComponentName + ". " + e.getMessage());
+		Map<String, Object> statusComponentValues = statusCodec.readValues();
+		if (statusComponentValues.isEmpty()) {
+			return;
+		}
+
+		final String requestBody = new JSONObject(statusComponentValues).toString();
+		RateLimiter limiter = rateLimiters.get(RateLimit.Operation.STATUS);
+		if (limiter != null && !limiter.admit("status", new Runnable() {
+			public void run() {
+				try {
+					deliverStatus(requestBody);
+				} catch (IOException e) {
+					log.warn("Status could not be stored: " + e.getMessage());
+				} catch (LhingsException e) {
+					log.warn("Status could not be stored: " + e.getMessage());
+				}
 			}
+		}, getSharedTimer(), deliveries)) {
+			log.debug("Status held back by rate limit.");
+			return;
 		}
-		if (statusComponentValues.isEmpty()) {
+		deliverStatus(requestBody);
+	}
+
+	private void deliverStatus(String requestBody) throws IOException, LhingsException {
+		if (outbox != null && !outbox.isEmpty()) {
+			storeInOutbox(new OutboxEntry(OutboxEntry.Type.STATUS, null, requestBody));
 			return;
 		}
 
-		if (WebServiceCom.storeStatus(this, statusComponentValues)) {
+		boolean stored;
+		try {
+			stored = WebServiceCom.storeStatus(this, requestBody);
+		} catch (IOException e) {
+			if (outbox == null)
+				throw e;
+			storeInOutbox(new OutboxEntry(OutboxEntry.Type.STATUS, null, requestBody));
+			return;
+		}
+		if (stored) {
 			log.debug("Successfully stored status");
 		} else {
 			log.warn("Status could not be stored");
 		}
 	}
 
+	/**
+	 * Enables the outbox of this device, with default size. See
+	 * {@link #enableOutbox(File, int, int)}.
+	 *
+	 * @param directory
+	 *            Directory where the outboxes of the devices are stored.
+	 * @throws IOException
+	 *             If the outbox cannot be created or opened.
+	 */
+	public void enableOutbox(File directory) throws IOException {
+		enableOutbox(directory, Outbox.DEFAULT_SEGMENT_SIZE, Outbox.DEFAULT_MAX_SEGMENTS);
+	}
+
+	/**
+	 * Enables the outbox of this device. Events and status that cannot be sent
+	 * because the network is down are stored on disk instead of being
+	 * discarded, and they are sent in order once the connection to Lhings is
+	 * recovered, even if the application was restarted in the meantime. This
+	 * method must be called before <code>start()</code>.
+	 *
+	 * @param directory
+	 *            Directory where the outboxes of the devices are stored. Each
+	 *            device uses a subdirectory named after its uuid.
+	 * @param segmentSize
+	 *            Size in bytes of each one of the files of the outbox.
+	 * @param maxSegments
+	 *            Maximum number of files of the outbox. When all of them are
+	 *            full, the oldest one is discarded.
+	 * @throws IOException
+	 *             If the outbox cannot be created or opened.
+	 */
+	public void enableOutbox(File directory, int segmentSize, int maxSegments) throws IOException {
+		if (outbox != null)
+			throw new IllegalStateException("Outbox already enabled for device " + name + ".");
+		outbox = new Outbox(new File(directory, uuid), segmentSize, maxSegments);
+	}
+
+	private void storeInOutbox(OutboxEntry entry) {
+		try {
+			if (outbox.append(entry))
+				log.debug("Lhings unreachable, stored in outbox: " + entry);
+		} catch (IOException e) {
+			log.warn("Could not store in outbox: " + entry + ". Reason: " + e.getMessage());
+		} catch (IllegalStateException e) {
+			log.warn("Could not store in outbox: " + entry + ". Reason: device " + name + " is stopped.");
+		}
+	}
+
+	/**
+	 * Sends the entries waiting in the outbox, in order, until it is empty or
+	 * Lhings is unreachable again.
+	 */
+	private void replayOutbox() {
+		try {
+			replayOutboxEntries();
+		} catch (IllegalStateException e) {
+			// the device was stopped and its outbox closed while replaying
+			log.debug("Outbox replay of device " + name + " interrupted by stop.");
+		}
+	}
+
+	private void replayOutboxEntries() {
+		OutboxEntry entry;
+		while (!stopped && (entry = outbox.peek()) != null) {
+			// the replay is subject to the rate limits of the device too, but
+			// waits for them instead of dropping entries
+			RateLimiter limiter = rateLimiters.get(entry.getType() == OutboxEntry.Type.EVENT ? RateLimit.Operation.EVENT
+					: RateLimit.Operation.STATUS);
+			if (limiter != null) {
+				try {
+					limiter.acquire();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+			try {
+				if (entry.getType() == OutboxEntry.Type.EVENT)
+					WebServiceCom.sendEvent(this, entry.getName(), entry.getPayload());
+				else
+					WebServiceCom.storeStatus(this, entry.getPayload());
+				log.debug("Sent from outbox: " + entry);
+			} catch (IOException e) {
+				// still offline, try again later
+				return;
+			} catch (BadRequestException e) {
+				log.warn("Discarding " + entry + " from outbox, it was rejected by the server: " + e.getMessage());
+			} catch (DeviceDoesNotExistException e) {
+				log.warn("Discarding " + entry + " from outbox, the device does not exist in the server: " + e.getMessage());
+			} catch (LhingsException e) {
+				// throttling, server errors and credentials that may be fixed
+				// are not a rejection of the entry, try again later
+				log.warn("Could not send " + entry + " from outbox, it will be retried: " + e.getMessage());
+				return;
+			}
+			outbox.acknowledge();
+		}
+	}
+
 	/**
 	 * Request another device to perform one of its actions.Both the action name
 	 * and argument names must have been declared by the other device in its
@@ -1151,17 +1993,68 @@ public abstract class LhingsDevice {
 	 */
 	public String requestAction(String uuid, String actionName, Map<String, Object> arguments) throws IOException, LhingsException {
 		log.debug("Requesting action " + actionName + " to device " + uuid);
+		throttleRequest();
 		String json = WebServiceCom.requestAction(this, uuid, actionName, arguments);
 		return json;
 	}
 
 	private static void updateProperties() {
-		try {
-			FileWriter writer = new FileWriter(fileUuids);
-			uuids.store(writer, "Java Lhings SDK device list - last modified " + new Date());
-			writer.close();
-		} catch (IOException ex) {
-			log.error("Device list properties file could not be saved.");
+		synchronized (filesLock) {
+			if (deferredFileUpdates > 0) {
+				uuidsChanged = true;
+				return;
+			}
+			try {
+				FileWriter writer = new FileWriter(fileUuids);
+				uuids.store(writer, "Java Lhings SDK device list - last modified " + new Date());
+				writer.close();
+				uuidsChanged = false;
+			} catch (IOException ex) {
+				log.error("Device list properties file could not be saved.");
+			}
+		}
+	}
+
+	private static void updateDescriptorHashes() {
+		synchronized (filesLock) {
+			if (deferredFileUpdates > 0) {
+				descriptorHashesChanged = true;
+				return;
+			}
+			try {
+				FileWriter writer = new FileWriter(fileDescriptorHashes);
+				descriptorHashes.store(writer, "Java Lhings SDK descriptor hashes - last modified " + new Date());
+				writer.close();
+				descriptorHashesChanged = false;
+			} catch (IOException ex) {
+				log.error("Descriptor hashes file could not be saved.");
+			}
+		}
+	}
+
+	/**
+	 * Postpones writing uuid.list and descriptor.hashes until a matching call
+	 * to <code>endDeferredFileUpdates()</code>, so that many devices can be
+	 * registered and started without rewriting the files for each of them.
+	 */
+	static void beginDeferredFileUpdates() {
+		synchronized (filesLock) {
+			deferredFileUpdates++;
+		}
+	}
+
+	/**
+	 * Writes the files whose update was postponed, once every call to
+	 * <code>beginDeferredFileUpdates()</code> has been matched.
+	 */
+	static void endDeferredFileUpdates() {
+		synchronized (filesLock) {
+			if (--deferredFileUpdates > 0)
+				return;
+			if (uuidsChanged)
+				updateProperties();
+			if (descriptorHashesChanged)
+				updateDescriptorHashes();
 		}
 	}
 
@@ -1226,6 +2119,21 @@ public abstract class LhingsDevice {
 		this.jsonDescriptor = jsonDescriptor;
 	}
 
+	/**
+	 * Makes the device send its descriptor to Lhings when it starts even if
+	 * it did not change since it was last sent. By default the upload is
+	 * skipped when the hash of the descriptor matches the one stored in file
+	 * descriptor.hashes, next to uuid.list. Use it if the device was modified
+	 * in Lhings by other means; deleting descriptor.hashes has the same effect
+	 * for all devices.
+	 *
+	 * @param forceDescriptorUpload
+	 *            true to always send the descriptor.
+	 */
+	public void setForceDescriptorUpload(boolean forceDescriptorUpload) {
+		this.forceDescriptorUpload = forceDescriptorUpload;
+	}
+
 	public void setSocketManager(SocketManager socketMan) {
 		if (this.socketMan == null)
 			this.socketMan = socketMan;
@@ -1240,12 +2148,79 @@ public abstract class LhingsDevice {
 			return;
 		}
 
-		if (sharedTimer != null) {
-			log.warn("Changing the number of threads after the first device has started has no effect.");
-			return;
+		synchronized (LhingsDevice.class) {
+			if (sharedTimer != null) {
+				// a timer that resizes itself has its bounds widened to include
+				// the size requested
+				sharedTimer.setThreads(threads);
+				int min = sharedTimer.getMinThreads(), max = sharedTimer.getMaxThreads();
+				log.info("Shared timer resized to " + sharedTimer.getCorePoolSize() + " threads as requested"
+						+ (min < max ? ", resizable from " + min + " to " + max + " threads." : "."));
+				return;
+			}
 		}
 		log.info("Setting number of threads to " + threads + " as requested.");
 		this.threads = threads;
 	}
 
+	/**
+	 * Lets the threads that run the loops of all devices, those of the shared
+	 * timer and the workers the loops are split among, resize themselves
+	 * between the given number of threads, adding threads when loops wait too
+	 * long for one or fall behind their period, and removing them when they
+	 * are idle. It can be called at
+	 * any time; by default the timer keeps the number of threads set with
+	 * <code>setThreads()</code>. See <code>getSchedulerMetrics()</code>.
+	 *
+	 * @param minThreads
+	 *            Minimum number of threads, at least 1.
+	 * @param maxThreads
+	 *            Maximum number of threads, at least minThreads.
+	 */
+	public void setThreadBounds(int minThreads, int maxThreads) {
+		if (minThreads < 1 || maxThreads < minThreads) {
+			log.warn("Invalid bounds for the number of threads: " + minThreads + " to " + maxThreads + ". Ignoring them.");
+			return;
+		}
+		synchronized (LhingsDevice.class) {
+			if (sharedTimer != null) {
+				sharedTimer.setBounds(minThreads, maxThreads);
+				log.info("Shared timer bounds set to " + minThreads + " to " + maxThreads + " threads as requested.");
+				return;
+			}
+		}
+		this.minThreads = minThreads;
+		this.maxThreads = maxThreads;
+	}
+
+	/**
+	 * Returns the metrics of the shared timer that ticks the loops of all
+	 * devices, whose size is also the number of shards the loops are split
+	 * among, or null if no device was started yet.
+	 */
+	public static SchedulerMetrics getSchedulerMetrics() {
+		ElasticScheduledExecutor timer;
+		synchronized (LhingsDevice.class) {
+			timer = sharedTimer;
+		}
+		if (timer == null)
+			return null;
+		return new SchedulerMetrics(timer.getCorePoolSize(), timer.getMinThreads(), timer.getMaxThreads(), timer.getGrowths(),
+				timer.getShrinks(), timer.getLastLagNanos(), timer.getLag().copy());
+	}
+
+	/**
+	 * Runs the <code>loop()</code> method and the actions of this device in
+	 * virtual threads instead of in the threads of the shared timer, so that
+	 * devices that block on I/O do not delay the other ones. Virtual threads
+	 * need Java 21 or newer; in older JVMs this setting is ignored with a
+	 * warning. It must be called before <code>start()</code>.
+	 *
+	 * @param virtualThreads
+	 *            true to run this device in virtual threads.
+	 */
+	public void setVirtualThreads(boolean virtualThreads) {
+		this.virtualThreads = virtualThreads;
+	}
+
 }
@@ -0,0 +1,34 @@
+/* Copyright 2014 Lyncos Technologies S. L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lhings.java;
+
+/**
+ * Listener notified when an execution of the <code>loop()</code> method of a
+ * device takes longer than the period of the loop. See
+ * {@link LhingsDevice#setLoopOverrunListener(LoopOverrunListener)}.
+ */
+public interface LoopOverrunListener {
+
+	/**
+	 * Called in the thread that executed the loop, right after it finished.
+	 *
+	 * @param durationNanos
+	 *            Time the execution took, in nanoseconds.
+	 * @param budgetNanos
+	 *            Period of the loop, in nanoseconds.
+	 */
+	public void loopOverrun(LhingsDevice device, long durationNanos, long budgetNanos);
+}
@@ -0,0 +1,103 @@
+/* Copyright 2014 Lyncos Technologies S. L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lhings.java;
+
+/**
+ * Limit of the rate at which a device calls Lhings for one kind of operation,
+ * and what to do with the calls over the limit. See
+ * {@link LhingsDevice#setRateLimit(Operation, RateLimit)}.
+ */
+public final class RateLimit {
+
+	/**
+	 * Kinds of calls to Lhings that can be limited.
+	 */
+	public enum Operation {
+		/**
+		 * <code>sendEvent()</code>.
+		 */
+		EVENT,
+		/**
+		 * <code>storeStatus()</code>.
+		 */
+		STATUS,
+		/**
+		 * Calls that return a value: <code>requestAction()</code>,
+		 * <code>getStatus()</code>, <code>getDevices()</code>,
+		 * <code>getSettings()</code> and <code>setSettings()</code>.
+		 */
+		REQUEST
+	}
+
+	/**
+	 * What to do with a call over the limit.
+	 */
+	public enum Policy {
+		/**
+		 * Wait in the calling thread until the call is allowed.
+		 */
+		BLOCK,
+		/**
+		 * Discard the call. Calls that return a value throw
+		 * {@link com.lhings.java.exception.RateLimitExceededException}.
+		 */
+		DROP,
+		/**
+		 * Return at once and make the call later, when it is allowed. If more
+		 * calls of the same event, or more status stores, are made in the
+		 * meantime, only the last one is made. Calls that return a value
+		 * block instead.
+		 */
+		COALESCE
+	}
+
+	private final double permitsPerSecond;
+	private final int burst;
+	private final Policy policy;
+
+	/**
+	 * @param permitsPerSecond
+	 *            Sustained number of calls per second allowed.
+	 * @param burst
+	 *            Number of calls allowed at once after a quiet period.
+	 * @param policy
+	 *            What to do with calls over the limit.
+	 */
+	public RateLimit(double permitsPerSecond, int burst, Policy policy) {
+		if (permitsPerSecond <= 0 || burst < 1)
+			throw new IllegalArgumentException("Invalid rate limit: " + permitsPerSecond + " per second, burst of " + burst + ".");
+		this.permitsPerSecond = permitsPerSecond;
+		this.burst = burst;
+		this.policy = policy;
+	}
+
+	public double getPermitsPerSecond() {
+		return permitsPerSecond;
+	}
+
+	public int getBurst() {
+		return burst;
+	}
+
+	public Policy getPolicy() {
+		return policy;
+	}
+
+	@Override
+	public String toString() {
+		return permitsPerSecond + "/s, burst " + burst + ", " + policy;
+	}
+}
@@ -0,0 +1,192 @@
+/* Copyright 2014 Lyncos Technologies S. L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lhings.java;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.lhings.java.model.ThrottleStatistics;
+import com.lhings.java.utils.TokenBucket;
+
+/**
+ * Enforces the rate limit of one kind of operation of a device: calls take a
+ * token from a bucket, and calls that find it empty are blocked, dropped or
+ * coalesced according to the policy of the limit. Coalesced calls are kept
+ * by key, the last one of each key only, and made as tokens become available:
+ * the shared timer only waits for the tokens, and the calls, which usually
+ * block on HTTP, are made by another executor.
+ */
+final class RateLimiter {
+
+	private static final Logger log = LoggerFactory.getLogger(RateLimiter.class);
+
+	private final RateLimit limit;
+	private final TokenBucket bucket;
+	private final AtomicLong allowed = new AtomicLong();
+	private final AtomicLong blocked = new AtomicLong();
+	private final AtomicLong blockedNanos = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong coalesced = new AtomicLong();
+	private final Map<String, Runnable> pending = new LinkedHashMap<String, Runnable>();
+	private boolean flushScheduled;
+
+	RateLimiter(RateLimit limit) {
+		this.limit = limit;
+		this.bucket = new TokenBucket(limit.getPermitsPerSecond(), limit.getBurst());
+	}
+
+	RateLimit getLimit() {
+		return limit;
+	}
+
+	/**
+	 * Decides whether a call can be made now, blocking the caller if the
+	 * policy says so.
+	 *
+	 * @param key
+	 *            Key of the call, calls with the same key are coalesced. Null
+	 *            if the call cannot be made later.
+	 * @param deferred
+	 *            The call, to be made later if it is coalesced.
+	 * @param timer
+	 *            Timer that waits until the coalesced calls can be made, null
+	 *            if there is none.
+	 * @param executor
+	 *            Executor that makes the coalesced calls.
+	 * @return true if the caller must make the call now, false if it was
+	 *         dropped or will be made later.
+	 */
+	boolean admit(String key, Runnable deferred, ScheduledExecutorService timer, Executor executor) {
+		if (limit.getPolicy() == RateLimit.Policy.COALESCE && key != null && timer != null && executor != null) {
+			synchronized (this) {
+				// calls waiting go before new ones
+				if (pending.isEmpty() && bucket.tryAcquire()) {
+					allowed.incrementAndGet();
+					return true;
+				}
+				if (pending.put(key, deferred) != null)
+					coalesced.incrementAndGet();
+				if (!flushScheduled) {
+					flushScheduled = true;
+					scheduleFlush(timer, executor);
+				}
+				return false;
+			}
+		}
+		if (bucket.tryAcquire()) {
+			allowed.incrementAndGet();
+			return true;
+		}
+		if (limit.getPolicy() == RateLimit.Policy.DROP) {
+			dropped.incrementAndGet();
+			return false;
+		}
+		try {
+			blockedNanos.addAndGet(bucket.acquire());
+			blocked.incrementAndGet();
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			dropped.incrementAndGet();
+			return false;
+		}
+	}
+
+	/**
+	 * Waits until a call can be made, whatever the policy of the limit, for
+	 * calls that must neither be dropped nor coalesced, like the replay of
+	 * the outbox.
+	 *
+	 * @throws InterruptedException
+	 *             If the calling thread is interrupted while waiting.
+	 */
+	void acquire() throws InterruptedException {
+		if (bucket.tryAcquire()) {
+			allowed.incrementAndGet();
+			return;
+		}
+		blockedNanos.addAndGet(bucket.acquire());
+		blocked.incrementAndGet();
+	}
+
+	private void scheduleFlush(final ScheduledExecutorService timer, final Executor executor) {
+		final Runnable flushTask = new Runnable() {
+			public void run() {
+				flush(timer, executor);
+			}
+		};
+		try {
+			timer.schedule(new Runnable() {
+				public void run() {
+					try {
+						executor.execute(flushTask);
+					} catch (RejectedExecutionException e) {
+						synchronized (RateLimiter.this) {
+							dropPending();
+						}
+					}
+				}
+			}, bucket.nanosUntilAvailable(), TimeUnit.NANOSECONDS);
+		} catch (RejectedExecutionException e) {
+			dropPending();
+		}
+	}
+
+	// the device was stopped and the executors released
+	private void dropPending() {
+		dropped.addAndGet(pending.size());
+		pending.clear();
+		flushScheduled = false;
+	}
+
+	private void flush(ScheduledExecutorService timer, Executor executor) {
+		while (true) {
+			Runnable call;
+			synchronized (this) {
+				if (pending.isEmpty()) {
+					flushScheduled = false;
+					return;
+				}
+				if (!bucket.tryAcquire()) {
+					scheduleFlush(timer, executor);
+					return;
+				}
+				Iterator<Runnable> calls = pending.values().iterator();
+				call = calls.next();
+				calls.remove();
+				allowed.incrementAndGet();
+			}
+			try {
+				call.run();
+			} catch (RuntimeException e) {
+				log.error("Unexpected exception thrown by rate limited call: " + e.getMessage(), e);
+			}
+		}
+	}
+
+	ThrottleStatistics getStatistics() {
+		return new ThrottleStatistics(allowed.get(), blocked.get(), blockedNanos.get(), dropped.get(), coalesced.get());
+	}
+}
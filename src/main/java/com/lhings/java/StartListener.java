@@ -0,0 +1,37 @@
+/* Copyright 2014 Lyncos Technologies S. L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lhings.java;
+
+import com.lhings.java.exception.LhingsException;
+
+/**
+ * Listener notified of the outcome of starting a device, since
+ * {@link LhingsDevice#start()} returns before the session is started. See
+ * {@link LhingsDevice#addStartListener(StartListener)}.
+ */
+public interface StartListener {
+
+	/**
+	 * Called when the device starts session in Lhings.
+	 */
+	public void sessionStarted(LhingsDevice device);
+
+	/**
+	 * Called when Lhings rejects the device, because it does not exist or the
+	 * credentials are not valid. The device is stopped and will not retry.
+	 */
+	public void startFailed(LhingsDevice device, LhingsException reason);
+}
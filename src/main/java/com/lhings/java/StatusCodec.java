@@ -0,0 +1,214 @@
+/* Copyright 2014 Lyncos Technologies S. L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lhings.java;
+
+import java.lang.reflect.Field;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.lhings.java.exception.LhingsException;
+import com.lhings.java.metadata.DeviceMetadata;
+import com.lhings.java.model.ArgumentType;
+import com.lhings.java.model.MethodOrFieldToInstanceMapper;
+
+/**
+ * Encoder of the status of a device into the arguments attribute of a status
+ * response. The layout of the status is resolved once, when the device is
+ * configured: for each component its type, the bytes of its name and the
+ * field holding its value, already made accessible (or, for device classes
+ * compiled with the annotation processor, the generated accessor). Encoding reads the fields
+ * and writes the attribute directly into a buffer that is reused between
+ * requests; the result is the same that
+ * <code>STUNMessageFactory.buildArgumentsAttribute</code> produces.
+ */
+final class StatusCodec {
+
+	private static final Logger log = LoggerFactory.getLogger(StatusCodec.class);
+	private static final Charset UTF8 = Charset.forName("utf-8");
+	private static final int MAX_STRING_LENGTH = 255;
+
+	private final String[] names;
+	private final byte[][] nameBytes;
+	private final ArgumentType[] types;
+	private final Field[] fields;
+	private final Object[] instances;
+	private final boolean[] primitive;
+	private final DeviceMetadata metadata;
+	private final Object device;
+	private byte[] buffer;
+
+	StatusCodec(Map<String, com.lhings.java.model.StatusComponent> definitions, Map<String, MethodOrFieldToInstanceMapper> fieldMappers) {
+		this(definitions.values(), null, null);
+		int j = 0;
+		for (String name : definitions.keySet()) {
+			MethodOrFieldToInstanceMapper fieldMapper = fieldMappers.get(name);
+			fields[j] = fieldMapper.getField();
+			fields[j].setAccessible(true);
+			instances[j] = fieldMapper.getInstance();
+			primitive[j] = fields[j].getType().isPrimitive();
+			j++;
+		}
+	}
+
+	/**
+	 * Creates a codec that reads the status components through the metadata
+	 * generated for the class of the device.
+	 */
+	StatusCodec(DeviceMetadata metadata, Object device) {
+		this(metadata.getStatusComponents(), metadata, device);
+	}
+
+	private StatusCodec(Collection<com.lhings.java.model.StatusComponent> components, DeviceMetadata metadata, Object device) {
+		int size = components.size();
+		this.metadata = metadata;
+		this.device = device;
+		names = new String[size];
+		nameBytes = new byte[size][];
+		types = new ArgumentType[size];
+		fields = new Field[size];
+		instances = new Object[size];
+		primitive = new boolean[size];
+		int capacity = size + 2;
+		int j = 0;
+		for (com.lhings.java.model.StatusComponent component : components) {
+			names[j] = component.getName();
+			nameBytes[j] = names[j].getBytes(UTF8);
+			types[j] = ArgumentType.getType(component.getType());
+			capacity += 4 + nameBytes[j].length + (types[j] == ArgumentType.STRING ? MAX_STRING_LENGTH : 0);
+			j++;
+		}
+		buffer = new byte[capacity];
+	}
+
+	/**
+	 * Returns the current value of every status component that could be read,
+	 * by name.
+	 */
+	Map<String, Object> readValues() {
+		Map<String, Object> values = new HashMap<String, Object>();
+		for (int j = 0; j < names.length; j++) {
+			try {
+				values.put(names[j], read(j));
+			} catch (IllegalAccessException e) {
+				log.warn("Could not read status component called " + names[j] + ". " + e.getMessage());
+			} catch (IllegalArgumentException e) {
+				log.warn("Could not read status component called " + names[j] + ". " + e.getMessage());
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * Reads the current value of every status component and returns the
+	 * arguments attribute that carries them.
+	 *
+	 * @throws LhingsException
+	 *             if the value of a component could not be read.
+	 */
+	synchronized byte[] encode() throws LhingsException {
+		int numArgs = names.length;
+		byte stringMask = 0x00;
+		buffer[0] = (byte) numArgs;
+		int position = numArgs + 2;
+		for (int j = 0; j < numArgs; j++) {
+			byte[] name = nameBytes[j];
+			try {
+				if (types[j] == ArgumentType.STRING) {
+					stringMask = (byte) (stringMask | (1 << j));
+					Object value = read(j);
+					byte[] strValue = value == null ? new byte[0] : value.toString().getBytes(UTF8);
+					ensureCapacity(position + 4 + strValue.length + name.length);
+					buffer[position] = 0x00;
+					buffer[position + 1] = (byte) strValue.length;
+					buffer[position + 2] = 0x00;
+					buffer[position + 3] = (byte) name.length;
+					position += 4;
+					System.arraycopy(strValue, 0, buffer, position, strValue.length);
+					position += strValue.length;
+					buffer[j + 1] = (byte) (strValue.length + name.length);
+				} else {
+					putInt(position, readAsInt(j));
+					position += 4;
+					buffer[j + 1] = (byte) name.length;
+				}
+			} catch (IllegalAccessException e) {
+				throw new LhingsException("Value for " + names[j] + " could not be retrieved");
+			} catch (IllegalArgumentException e) {
+				throw new LhingsException("Value for " + names[j] + " could not be retrieved");
+			}
+			System.arraycopy(name, 0, buffer, position, name.length);
+			position += name.length;
+		}
+		buffer[numArgs + 1] = stringMask;
+		return Arrays.copyOf(buffer, position);
+	}
+
+	/**
+	 * Reads the value of a non string component as the four bytes that encode
+	 * it in the attribute.
+	 */
+	private int readAsInt(int j) throws IllegalAccessException {
+		Field field = fields[j];
+		Object instance = instances[j];
+		switch (types[j]) {
+		case INTEGER:
+			if (primitive[j])
+				return field.getInt(instance);
+			Integer intValue = (Integer) read(j);
+			return intValue == null ? 0 : intValue.intValue();
+		case FLOAT:
+			if (primitive[j])
+				return Float.floatToRawIntBits((float) field.getDouble(instance));
+			Number floatValue = (Number) read(j);
+			return floatValue == null ? 0 : Float.floatToRawIntBits(floatValue.floatValue());
+		case BOOLEAN:
+			if (primitive[j])
+				return field.getBoolean(instance) ? 1 : 0;
+			Boolean boolValue = (Boolean) read(j);
+			return boolValue != null && boolValue.booleanValue() ? 1 : 0;
+		case TIMESTAMP:
+			Date dateValue = (Date) read(j);
+			return dateValue == null ? 0 : (int) (dateValue.getTime() / 1000);
+		default:
+			return 0;
+		}
+	}
+
+	private Object read(int j) throws IllegalAccessException {
+		if (metadata != null)
+			return metadata.readStatusComponent(device, j);
+		return fields[j].get(instances[j]);
+	}
+
+	private void putInt(int position, int n) {
+		buffer[position] = (byte) (n >> 24);
+		buffer[position + 1] = (byte) (n >> 16);
+		buffer[position + 2] = (byte) (n >> 8);
+		buffer[position + 3] = (byte) n;
+	}
+
+	private void ensureCapacity(int needed) {
+		if (needed > buffer.length)
+			buffer = Arrays.copyOf(buffer, Math.max(needed, buffer.length * 2));
+	}
+}
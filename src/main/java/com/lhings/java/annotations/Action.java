@@ -25,10 +25,15 @@ import java.lang.annotation.Target;
 /**
  * This annotation is used to tell the Lhings Java library which methods implement
  * actions, in the <a href="http://support.lhings.com/Getting-started.html">Lhings sense of action</a>.
- * Methods annotated with <code>@Action</code> should have return type void, and may have up to eight
+ * Methods annotated with <code>@Action</code> may have up to eight
  * parameters, which should be of type int, float, double, boolean, String, java.util.Date and any of
  * the corresponding wrapper types (i. e., they are <a href="http://support.lhings.com/Typed-Parameters.html">typed parameters</a>).
  * 
+ * The value returned by the method, if any, is sent back to the requester in the success response.
+ * Values of the types allowed for parameters travel as an argument named after <code>resultName</code>
+ * (by default "result"); strings that do not fit in 255 bytes together with the result name travel
+ * as the payload, and any other object is encoded as JSON in the payload.
+ * 
  * <code>name</code> and <code>description</code> are optional. <code>argumentNames</code> is mandatory and must
  * contain a list of the names of the parameters of the action. They do not need to be the same as the ones of the java
  * method, but they should be in the same order.
@@ -49,4 +54,5 @@ public @interface Action {
 	String name() default "";
 	String description() default "";
 	String[] argumentNames();
+	String resultName() default "result";
 }
@@ -0,0 +1,31 @@
+/* Copyright 2014 Lyncos Technologies S. L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lhings.java.exception;
+
+/**
+ * Thrown when a call to Lhings is dropped because it exceeds the rate limit
+ * set for it on the device, see
+ * {@link com.lhings.java.LhingsDevice#setRateLimit(com.lhings.java.RateLimit.Operation, com.lhings.java.RateLimit)}.
+ */
+public class RateLimitExceededException extends LhingsException {
+
+	private static final long serialVersionUID = -2474180527561361805L;
+
+	public RateLimitExceededException(String message) {
+		super(message);
+	}
+
+}
@@ -0,0 +1,28 @@
+/* Copyright 2014 Lyncos Technologies S. L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lhings.java.http;
+
+/**
+ * Read endpoints of the Lhings API whose responses can be cached by
+ * {@link WebServiceCom}. The time to live of each one of them is set with
+ * {@link WebServiceCom#setCacheTtl(CachedEndpoint, long)}.
+ */
+public enum CachedEndpoint {
+	/** The verbose list of devices of the account. */
+	DEVICE_LIST,
+	/** The status components of a device. */
+	DEVICE_STATUS
+}
@@ -20,6 +20,7 @@ final class HttpResponse{
 	private int statusCode;
 	private String statusMessage;
 	private String responseBody;
+	private String etag;
 	
 	public int getStatusCode() {
 		return statusCode;
@@ -39,4 +40,10 @@ final class HttpResponse{
 	public void setResponseBody(String responseBody) {
 		this.responseBody = responseBody;
 	}
+	public String getEtag() {
+		return etag;
+	}
+	public void setEtag(String etag) {
+		this.etag = etag;
+	}
 }
\ No newline at end of file
@@ -0,0 +1,115 @@
+/* Copyright 2014 Lyncos Technologies S. L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lhings.java.http;
+
+import java.io.Reader;
+import java.util.Date;
+import java.util.Map;
+
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import com.lhings.java.DeviceVisitor;
+import com.lhings.java.model.Device;
+
+/**
+ * Decodes JSON arrays of objects element by element, straight from a
+ * character stream. Only the element being processed is held in memory, the
+ * array as a whole is never built.
+ */
+final class JsonArrayReader {
+
+	interface ElementHandler {
+		/**
+		 * @return false to stop reading the array.
+		 */
+		boolean element(JSONObject element);
+	}
+
+	private JsonArrayReader() {
+	}
+
+	/**
+	 * Reads a JSON array of objects from the given reader, passing each one of
+	 * its elements to the handler.
+	 */
+	static void read(Reader reader, ElementHandler handler) {
+		JSONTokener tokener = new JSONTokener(reader);
+		if (tokener.nextClean() != '[')
+			throw tokener.syntaxError("A JSONArray text must start with '['");
+		if (tokener.nextClean() == ']')
+			return;
+		tokener.back();
+		while (true) {
+			if (!handler.element(new JSONObject(tokener)))
+				return;
+			switch (tokener.nextClean()) {
+			case ',':
+				if (tokener.nextClean() == ']')
+					return;
+				tokener.back();
+				break;
+			case ']':
+				return;
+			default:
+				throw tokener.syntaxError("Expected a ',' or ']'");
+			}
+		}
+	}
+
+	/**
+	 * Reads a verbose device list, passing every device to the visitor.
+	 */
+	static void readDevices(Reader reader, final DeviceVisitor visitor) {
+		read(reader, new ElementHandler() {
+			public boolean element(JSONObject jsonObj) {
+				Device device = new Device();
+				device.setUuidString(jsonObj.getString("uuid"));
+				device.setName(jsonObj.getString("name"));
+				device.setType(jsonObj.getString("type"));
+				device.setIsonline((jsonObj.getBoolean("online")));
+				return visitor.visit(device);
+			}
+		});
+	}
+
+	/**
+	 * Reads a list of status components, putting their values in the given
+	 * map by name.
+	 */
+	static void readStatus(Reader reader, final Map<String, Object> status) {
+		read(reader, new ElementHandler() {
+			public boolean element(JSONObject statusComponent) {
+				status.put(statusComponent.getString("name"), statusValue(statusComponent));
+				return true;
+			}
+		});
+	}
+
+	private static Object statusValue(JSONObject statusComponent) {
+		String statusCompType = statusComponent.getString("type");
+		if (statusCompType.equals("integer"))
+			return statusComponent.getInt("value");
+		else if (statusCompType.equals("float"))
+			return (float) statusComponent.getDouble("value");
+		else if (statusCompType.equals("timestamp"))
+			return new Date((long) statusComponent.getInt("value") * 1000);
+		else if (statusCompType.equals("boolean"))
+			return statusComponent.getBoolean("value");
+		else
+			return statusComponent.getString("value");
+	}
+}
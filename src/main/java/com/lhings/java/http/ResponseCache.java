@@ -0,0 +1,122 @@
+/* Copyright 2014 Lyncos Technologies S. L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lhings.java.http;
+
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache of the bodies of GET responses, with a time to live per
+ * endpoint. Expired entries are kept so that their ETag can be used to
+ * revalidate them with a conditional request.
+ */
+final class ResponseCache {
+
+	static final int DEFAULT_MAX_ENTRIES = 1024;
+
+	private final Map<CachedEndpoint, Long> ttls = new EnumMap<CachedEndpoint, Long>(CachedEndpoint.class);
+	private final LinkedHashMap<String, CachedResponse> entries;
+	private int maxEntries = DEFAULT_MAX_ENTRIES;
+
+	static final class CachedResponse {
+		final CachedEndpoint endpoint;
+		final String body;
+		final String etag;
+		final long expiresAt;
+
+		CachedResponse(CachedEndpoint endpoint, String body, String etag, long expiresAt) {
+			this.endpoint = endpoint;
+			this.body = body;
+			this.etag = etag;
+			this.expiresAt = expiresAt;
+		}
+
+		boolean isFresh(long now) {
+			return now < expiresAt;
+		}
+	}
+
+	@SuppressWarnings("serial")
+	ResponseCache() {
+		entries = new LinkedHashMap<String, CachedResponse>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CachedResponse> eldest) {
+				return size() > maxEntries;
+			}
+		};
+		for (CachedEndpoint endpoint : CachedEndpoint.values())
+			ttls.put(endpoint, Long.valueOf(0));
+	}
+
+	synchronized void setTtl(CachedEndpoint endpoint, long ttlMillis) {
+		ttls.put(endpoint, Long.valueOf(ttlMillis));
+		if (ttlMillis <= 0)
+			invalidate(endpoint);
+	}
+
+	synchronized long getTtl(CachedEndpoint endpoint) {
+		return ttls.get(endpoint).longValue();
+	}
+
+	synchronized boolean isEnabled(CachedEndpoint endpoint) {
+		return ttls.get(endpoint).longValue() > 0;
+	}
+
+	synchronized void setMaxEntries(int maxEntries) {
+		this.maxEntries = maxEntries;
+		Iterator<String> it = entries.keySet().iterator();
+		while (entries.size() > maxEntries && it.hasNext()) {
+			it.next();
+			it.remove();
+		}
+	}
+
+	synchronized CachedResponse get(String key) {
+		return entries.get(key);
+	}
+
+	synchronized CachedResponse put(String key, CachedEndpoint endpoint, String body, String etag) {
+		CachedResponse entry = new CachedResponse(endpoint, body, etag, System.currentTimeMillis() + getTtl(endpoint));
+		entries.put(key, entry);
+		return entry;
+	}
+
+	/**
+	 * Removes all the entries whose key ends with the given suffix. Keys start
+	 * with the api key, so this removes a url for every account.
+	 */
+	synchronized void invalidateBySuffix(String suffix) {
+		Iterator<String> it = entries.keySet().iterator();
+		while (it.hasNext()) {
+			if (it.next().endsWith(suffix))
+				it.remove();
+		}
+	}
+
+	synchronized void invalidate(CachedEndpoint endpoint) {
+		Iterator<CachedResponse> it = entries.values().iterator();
+		while (it.hasNext()) {
+			if (it.next().endpoint == endpoint)
+				it.remove();
+		}
+	}
+
+	synchronized void clear() {
+		entries.clear();
+	}
+}
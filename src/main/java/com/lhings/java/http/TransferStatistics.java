@@ -0,0 +1,97 @@
+/* Copyright 2014 Lyncos Technologies S. L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lhings.java.http;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of the bytes exchanged with the Lhings REST API, before and after
+ * compression. Body bytes are the size of the bodies as produced or consumed
+ * by the library, wire bytes are the size actually transmitted.
+ */
+public final class TransferStatistics {
+
+	private final AtomicLong requestBodyBytes = new AtomicLong();
+	private final AtomicLong requestWireBytes = new AtomicLong();
+	private final AtomicLong responseBodyBytes = new AtomicLong();
+	private final AtomicLong responseWireBytes = new AtomicLong();
+	private final AtomicLong compressedRequests = new AtomicLong();
+	private final AtomicLong compressedResponses = new AtomicLong();
+
+	TransferStatistics() {
+	}
+
+	void recordRequest(long bodyBytes, long wireBytes, boolean compressed) {
+		requestBodyBytes.addAndGet(bodyBytes);
+		requestWireBytes.addAndGet(wireBytes);
+		if (compressed)
+			compressedRequests.incrementAndGet();
+	}
+
+	void recordResponse(long bodyBytes, long wireBytes, boolean compressed) {
+		responseBodyBytes.addAndGet(bodyBytes);
+		responseWireBytes.addAndGet(wireBytes);
+		if (compressed)
+			compressedResponses.incrementAndGet();
+	}
+
+	public long getRequestBodyBytes() {
+		return requestBodyBytes.get();
+	}
+
+	public long getRequestWireBytes() {
+		return requestWireBytes.get();
+	}
+
+	public long getResponseBodyBytes() {
+		return responseBodyBytes.get();
+	}
+
+	public long getResponseWireBytes() {
+		return responseWireBytes.get();
+	}
+
+	public long getCompressedRequests() {
+		return compressedRequests.get();
+	}
+
+	public long getCompressedResponses() {
+		return compressedResponses.get();
+	}
+
+	/**
+	 * Returns the number of bytes that compression saved, in both directions.
+	 */
+	public long getSavedBytes() {
+		return getRequestBodyBytes() - getRequestWireBytes() + getResponseBodyBytes() - getResponseWireBytes();
+	}
+
+	public void reset() {
+		requestBodyBytes.set(0);
+		requestWireBytes.set(0);
+		responseBodyBytes.set(0);
+		responseWireBytes.set(0);
+		compressedRequests.set(0);
+		compressedResponses.set(0);
+	}
+
+	@Override
+	public String toString() {
+		return "requests: " + getRequestBodyBytes() + " bytes (" + getRequestWireBytes() + " sent, " + getCompressedRequests()
+				+ " compressed), responses: " + getResponseBodyBytes() + " bytes (" + getResponseWireBytes() + " received, "
+				+ getCompressedResponses() + " compressed)";
+	}
+}
@@ -15,34 +15,58 @@
 
 package com.lhings.java.http;
 
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpPut;
 import org.apache.http.client.methods.HttpRequestBase;
-import org.apache.http.entity.StringEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
-import org.apache.http.util.EntityUtils;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.protocol.HTTP;
 import org.json.JSONArray;
 import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.lhings.java.DeviceVisitor;
 import com.lhings.java.LhingsDevice;
 import com.lhings.java.exception.BadRequestException;
 import com.lhings.java.exception.DeviceDoesNotExistException;
 import com.lhings.java.exception.LhingsException;
 import com.lhings.java.exception.UnauthorizedException;
+import com.lhings.java.model.BulkStatusResult;
 import com.lhings.java.model.Device;
 import com.lhings.java.model.NameValueBean;
 
@@ -62,13 +86,220 @@ public final class WebServiceCom {
 //		System.setProperty("javax.net.ssl.trustStore", "./lhings-java.keystore");
 	}
 
-	@SuppressWarnings("unused")
 	private static Logger log = LoggerFactory.getLogger(WebServiceCom.class);
 	private static final String LHINGS_V1_API_PREFIX = "https://www.lhings.com/laas/api/v1/";
 	private static final int LHINGS_ERROR_HTTP_STATUS = 457;
 	private static final int LHINGS_V1_API_BAD_REQUEST_ERROR_CODE = 400;
 	private static final int LHINGS_V1_API_UNAUTHORIZED_ERROR_CODE = 401;
 	private static final int LHINGS_V1_API_NOT_FOUND_ERROR_CODE = 404;
+	private static final int HTTP_NOT_MODIFIED = 304;
+	private static final String DEVICE_LIST_URL = LHINGS_V1_API_PREFIX + "devices/?verbose";
+	private static final ResponseCache responseCache = new ResponseCache();
+	private static final TransferStatistics transferStatistics = new TransferStatistics();
+	private static final Charset UTF8 = Charset.forName("utf-8");
+	private static final int DEFAULT_MAX_CONNECTIONS = 32;
+	private static final int DEFAULT_BULK_CONCURRENCY = 8;
+	// a request never waits forever, neither for a free connection of the
+	// pool nor for a server that does not answer
+	private static final int CONNECTION_REQUEST_TIMEOUT_MILLIS = 10000;
+	private static final int CONNECT_TIMEOUT_MILLIS = 10000;
+	private static final int SOCKET_TIMEOUT_MILLIS = 30000;
+	private static final RequestConfig requestConfig = RequestConfig.custom()
+			.setConnectionRequestTimeout(CONNECTION_REQUEST_TIMEOUT_MILLIS)
+			.setConnectTimeout(CONNECT_TIMEOUT_MILLIS)
+			.setSocketTimeout(SOCKET_TIMEOUT_MILLIS).build();
+	// requests of devices (events, status, sessions...) and bulk reads have
+	// pools of their own, so that a bulk read cannot starve the devices
+	private static final PoolingHttpClientConnectionManager connectionPool = newConnectionPool(DEFAULT_MAX_CONNECTIONS);
+	private static final PoolingHttpClientConnectionManager bulkConnectionPool = newConnectionPool(DEFAULT_BULK_CONCURRENCY);
+	private static final CloseableHttpClient httpClient = newHttpClient(connectionPool);
+	private static final CloseableHttpClient bulkHttpClient = newHttpClient(bulkConnectionPool);
+	private static ExecutorService bulkExecutor;
+	private static int maxConnections = DEFAULT_MAX_CONNECTIONS;
+	private static int bulkConcurrency = DEFAULT_BULK_CONCURRENCY;
+
+	private static PoolingHttpClientConnectionManager newConnectionPool(int maxConnections) {
+		PoolingHttpClientConnectionManager pool = new PoolingHttpClientConnectionManager();
+		pool.setMaxTotal(maxConnections);
+		pool.setDefaultMaxPerRoute(maxConnections);
+		return pool;
+	}
+
+	private static CloseableHttpClient newHttpClient(PoolingHttpClientConnectionManager pool) {
+		// compression is handled by hand so that wire bytes can be counted
+		return HttpClients.custom().setConnectionManager(pool)
+				.setDefaultRequestConfig(requestConfig)
+				.disableContentCompression().build();
+	}
+
+	/**
+	 * Value of the request compression threshold that disables compression of
+	 * request bodies.
+	 */
+	public static final int REQUEST_COMPRESSION_DISABLED = -1;
+	private static volatile int requestCompressionThreshold = REQUEST_COMPRESSION_DISABLED;
+
+	/**
+	 * Enables gzip compression of the bodies of POST and PUT requests (events,
+	 * status, descriptors, settings...) whose size is at least the given
+	 * number of bytes. Bodies that do not get smaller when compressed are sent
+	 * as they are. Compression is disabled by default, use
+	 * {@link #REQUEST_COMPRESSION_DISABLED} to disable it again.
+	 * 
+	 * Compressed responses are always accepted and decoded transparently.
+	 * 
+	 * @param thresholdBytes
+	 *            Minimum size of the body, in bytes, for it to be compressed.
+	 */
+	public static void setRequestCompressionThreshold(int thresholdBytes) {
+		requestCompressionThreshold = thresholdBytes;
+	}
+
+	public static int getRequestCompressionThreshold() {
+		return requestCompressionThreshold;
+	}
+
+	/**
+	 * Returns the counters of bytes sent to and received from the Lhings REST
+	 * API, which show how much compression is saving.
+	 */
+	public static TransferStatistics getTransferStatistics() {
+		return transferStatistics;
+	}
+
+	/**
+	 * Sets the maximum number of HTTP connections to Lhings kept open and
+	 * reused between the requests of devices: events, status, sessions,
+	 * descriptors and settings. Requests beyond that wait for a free
+	 * connection up to 10 seconds, and then fail with an
+	 * <code>IOException</code>. Default is 32. Bulk operations have
+	 * connections of their own, see {@link #setBulkConcurrency(int)}.
+	 */
+	public static synchronized void setMaxConnections(int maxConnections) {
+		if (maxConnections < 1)
+			throw new IllegalArgumentException("Number of connections must be at least 1, " + maxConnections + " given.");
+		connectionPool.setMaxTotal(maxConnections);
+		connectionPool.setDefaultMaxPerRoute(maxConnections);
+		WebServiceCom.maxConnections = maxConnections;
+	}
+
+	public static synchronized int getMaxConnections() {
+		return maxConnections;
+	}
+
+	/**
+	 * Sets the number of requests that bulk operations like
+	 * {@link #getStatus(LhingsDevice, Collection)} run in parallel, each on a
+	 * connection of its own. Default is 8.
+	 */
+	public static synchronized void setBulkConcurrency(int bulkConcurrency) {
+		if (bulkConcurrency < 1)
+			throw new IllegalArgumentException("Number of connections must be at least 1, " + bulkConcurrency + " given.");
+		bulkConnectionPool.setMaxTotal(bulkConcurrency);
+		bulkConnectionPool.setDefaultMaxPerRoute(bulkConcurrency);
+		WebServiceCom.bulkConcurrency = bulkConcurrency;
+		if (bulkExecutor != null) {
+			bulkExecutor.shutdown();
+			bulkExecutor = null;
+		}
+	}
+
+	public static synchronized int getBulkConcurrency() {
+		return bulkConcurrency;
+	}
+
+	/**
+	 * Closes the HTTP connections to Lhings that are not in use and stops the
+	 * threads of bulk operations. Both are created again when needed.
+	 */
+	public static synchronized void closeIdleConnections() {
+		connectionPool.closeIdleConnections(0, TimeUnit.MILLISECONDS);
+		bulkConnectionPool.closeIdleConnections(0, TimeUnit.MILLISECONDS);
+		if (bulkExecutor != null) {
+			bulkExecutor.shutdown();
+			bulkExecutor = null;
+		}
+	}
+
+	private static synchronized ExecutorService getBulkExecutor() {
+		if (bulkExecutor == null) {
+			bulkExecutor = Executors.newFixedThreadPool(bulkConcurrency, new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "thr-http-" + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return bulkExecutor;
+	}
+
+	// submits under the lock that guards the replacement of the executor, so
+	// that a bulk operation never submits to an executor already shut down
+	private static synchronized <T> Future<T> submitBulk(Callable<T> task) {
+		return getBulkExecutor().submit(task);
+	}
+
+	/**
+	 * Sets for how long the responses of the given endpoint are reused before
+	 * asking the server again. Once that time elapses, responses that carried
+	 * an ETag are revalidated with a conditional request, so that an unchanged
+	 * resource is not downloaded again. A value of zero or less (the default)
+	 * disables caching for that endpoint.
+	 * 
+	 * @param endpoint
+	 *            The endpoint whose responses will be cached.
+	 * @param ttlMillis
+	 *            Time to live of the cached responses, in milliseconds.
+	 */
+	public static void setCacheTtl(CachedEndpoint endpoint, long ttlMillis) {
+		responseCache.setTtl(endpoint, ttlMillis);
+	}
+
+	public static long getCacheTtl(CachedEndpoint endpoint) {
+		return responseCache.getTtl(endpoint);
+	}
+
+	/**
+	 * Sets the maximum number of responses kept in the cache. When the limit
+	 * is reached the least recently used response is discarded. Default is
+	 * 1024.
+	 */
+	public static void setCacheMaxEntries(int maxEntries) {
+		responseCache.setMaxEntries(maxEntries);
+	}
+
+	/**
+	 * Discards all the cached responses.
+	 */
+	public static void invalidateCache() {
+		responseCache.clear();
+	}
+
+	/**
+	 * Discards the cached responses of the given endpoint.
+	 */
+	public static void invalidateCache(CachedEndpoint endpoint) {
+		responseCache.invalidate(endpoint);
+	}
+
+	/**
+	 * Discards the cached status of the device with the given uuid, so that the
+	 * next call to {@link #getStatus(LhingsDevice, String)} asks the server.
+	 */
+	public static void invalidateCachedStatus(String uuid) {
+		responseCache.invalidateBySuffix(statusUrl(uuid));
+	}
+
+	/**
+	 * Discards the cached device lists, which show the devices registered and
+	 * whether they are online, once any of that changes.
+	 */
+	private static void invalidateCachedDeviceList() {
+		responseCache.invalidateBySuffix(DEVICE_LIST_URL);
+	}
 
 	/**
 	 * Returns the api key of the account, given the username and password.
@@ -107,44 +338,87 @@ public final class WebServiceCom {
 		HttpPost postRequest = new HttpPost(url);
 
 		postRequest.setHeader("Content-Type", "application/json");
-		HttpEntity entity = new StringEntity(postBody, Charset.forName("utf-8"));
-		postRequest.setEntity(entity);
+		setRequestBody(postRequest, postBody);
 		postRequest.setHeader("X-Api-Key", apikey);
 		HttpResponse response = executeRequest(postRequest);
-		String json = response.getResponseBody();
-		int status = response.getStatusCode();
-		if (status == LHINGS_ERROR_HTTP_STATUS) {
-			int lhingsErrorCode = new JSONObject(json).getInt("responseStatus");
-			String errorMessage = new JSONObject(json).getString("message");
-			switch (lhingsErrorCode) {
-			case LHINGS_V1_API_BAD_REQUEST_ERROR_CODE:
-				throw new BadRequestException(
-						"Lhings API error. HTTP status " + status + ". Lhings error code " + lhingsErrorCode + " - "
-								+ errorMessage);
-			case LHINGS_V1_API_UNAUTHORIZED_ERROR_CODE:
-				throw new UnauthorizedException(
-						"Lhings API error. HTTP status " + status + ". Lhings error code " + lhingsErrorCode + " - "
-								+ errorMessage);
-			case LHINGS_V1_API_NOT_FOUND_ERROR_CODE:
-				throw new DeviceDoesNotExistException(
-						"Lhings API error. HTTP status " + status + ". Lhings error code " + lhingsErrorCode + " - "
-								+ errorMessage);
-			default:
-				throw new LhingsException("Lhings API error. HTTP status " + status + ". Lhings error code " + lhingsErrorCode + " - "
-						+ errorMessage);
-			}
-		} else if (status != 200 && status != 201) {
-			// HTTP error
-			throw new LhingsException("HTTP error. Code: " + status + " - " + response.getStatusMessage());
-		}
-		return json;
+		checkResponseStatus(response);
+		return response.getResponseBody();
 	}
 
 	private static String executeGet(String url, String apikey)
 			throws IOException, LhingsException {
+		return executeGet(httpClient, url, apikey);
+	}
+
+	private static String executeGet(CloseableHttpClient client, String url,
+			String apikey) throws IOException, LhingsException {
+		HttpGet getRequest = new HttpGet(url);
+		getRequest.setHeader("X-Api-Key", apikey);
+		HttpResponse response = executeRequest(client, getRequest, null);
+		checkResponseStatus(response);
+		return response.getResponseBody();
+	}
+
+	/**
+	 * Same as executeGet, but the response is taken from the cache while it is
+	 * fresh, and revalidated using its ETag once it has expired.
+	 */
+	private static String executeCachedGet(CloseableHttpClient client,
+			CachedEndpoint endpoint, String url, String apikey)
+			throws IOException, LhingsException {
+		if (!responseCache.isEnabled(endpoint))
+			return executeGet(client, url, apikey);
+		String key = apikey + " " + url;
+		ResponseCache.CachedResponse cached = responseCache.get(key);
+		if (cached != null && cached.isFresh(System.currentTimeMillis()))
+			return cached.body;
+
+		HttpGet getRequest = new HttpGet(url);
+		getRequest.setHeader("X-Api-Key", apikey);
+		if (cached != null && cached.etag != null)
+			getRequest.setHeader("If-None-Match", cached.etag);
+		HttpResponse response = executeRequest(client, getRequest, null);
+		if (response.getStatusCode() == HTTP_NOT_MODIFIED && cached != null) {
+			log.debug("Cached response for {} revalidated", url);
+			return responseCache.put(key, endpoint, cached.body, cached.etag).body;
+		}
+		checkResponseStatus(response);
+		responseCache.put(key, endpoint, response.getResponseBody(), response.getEtag());
+		return response.getResponseBody();
+	}
+
+	/**
+	 * Consumer of the body of a successful response.
+	 */
+	private interface BodyReader {
+		void read(Reader body) throws IOException, LhingsException;
+	}
+
+	/**
+	 * Executes a GET request and hands the body of the response to the given
+	 * reader as a stream, without reading it into memory first. If responses
+	 * of the endpoint are cached, the body is read from the cache instead.
+	 */
+	private static void executeStreamingGet(CloseableHttpClient client,
+			CachedEndpoint endpoint, String url, String apikey,
+			BodyReader bodyReader) throws IOException, LhingsException {
+		if (responseCache.isEnabled(endpoint)) {
+			bodyReader.read(new StringReader(executeCachedGet(client, endpoint, url,
+					apikey)));
+			return;
+		}
 		HttpGet getRequest = new HttpGet(url);
 		getRequest.setHeader("X-Api-Key", apikey);
-		HttpResponse response = executeRequest(getRequest);
+		HttpResponse response = executeRequest(client, getRequest, bodyReader);
+		checkResponseStatus(response);
+	}
+
+	/**
+	 * Throws the exception that corresponds to the status of the given
+	 * response, if it is not a successful one.
+	 */
+	private static void checkResponseStatus(HttpResponse response)
+			throws LhingsException {
 		int status = response.getStatusCode();
 		String json = response.getResponseBody();
 		if (status == LHINGS_ERROR_HTTP_STATUS) {
@@ -171,8 +445,6 @@ public final class WebServiceCom {
 			// HTTP error
 			throw new LhingsException("HTTP error. Code: " + status + " - " + response.getStatusMessage());
 		}
-
-		return json;
 	}
 
 	public static String registerDevice(LhingsDevice lhingsDevice)
@@ -182,6 +454,7 @@ public final class WebServiceCom {
 				+ lhingsDevice.getName() + "\"}";
 		String json = executePost(lhingsDevice.apiKey(), url, postBody);
 
+		invalidateCachedDeviceList();
 		String uuid = new JSONObject(json).getString("uuid");
 		if (uuid == null)
 			throw new LhingsException(
@@ -191,22 +464,31 @@ public final class WebServiceCom {
 
 	public static List<Device> deviceList(LhingsDevice lhingsDevice)
 			throws LhingsException, IOException {
-		String url = LHINGS_V1_API_PREFIX + "devices/?verbose";
-		String json = executeGet(url, lhingsDevice.apiKey());
-		JSONArray deviceArray = new JSONArray(json);
-		List<Device> deviceList = new ArrayList<Device>();
-		for (int j = 0; j < deviceArray.length(); j++) {
-			JSONObject jsonObj = deviceArray.getJSONObject(j);
-			Device device = new Device();
-			device.setUuidString(jsonObj.getString("uuid"));
-			device.setName(jsonObj.getString("name"));
-			device.setType(jsonObj.getString("type"));
-			device.setIsonline((jsonObj.getBoolean("online")));
-			deviceList.add(device);
-		}
+		final List<Device> deviceList = new ArrayList<Device>();
+		deviceList(lhingsDevice, new DeviceVisitor() {
+			public boolean visit(Device device) {
+				deviceList.add(device);
+				return true;
+			}
+		});
 		return deviceList;
 	}
 
+	/**
+	 * Retrieves the verbose device list of the account and passes each device
+	 * to the visitor as soon as it is decoded from the response stream, so that
+	 * the list is never held in memory as a whole.
+	 */
+	public static void deviceList(LhingsDevice lhingsDevice,
+			final DeviceVisitor visitor) throws LhingsException, IOException {
+		executeStreamingGet(httpClient, CachedEndpoint.DEVICE_LIST, DEVICE_LIST_URL,
+				lhingsDevice.apiKey(), new BodyReader() {
+					public void read(Reader body) {
+						JsonArrayReader.readDevices(body, visitor);
+					}
+				});
+	}
+
 	public static void startSession(LhingsDevice lhingsDevice)
 			throws IOException, LhingsException {
 		startEndSession(lhingsDevice, true);
@@ -224,6 +506,8 @@ public final class WebServiceCom {
 		String putBody = "{ \"name\": \"online\", \"value\": "
 				+ start.toString() + "}";
 		executePut(lhingsDevice.apiKey(), url, putBody);
+		invalidateCachedStatus(lhingsDevice.uuid());
+		invalidateCachedDeviceList();
 	}
 
 	public static void sendDescriptor(LhingsDevice lhingsDevice,
@@ -238,84 +522,197 @@ public final class WebServiceCom {
 			throws IOException, LhingsException {
 		HttpPut putRequest = new HttpPut(url);
 		putRequest.setHeader("Content-Type", "application/json");
-		HttpEntity entity = new StringEntity(requestBody,
-				Charset.forName("utf-8"));
-		putRequest.setEntity(entity);
+		setRequestBody(putRequest, requestBody);
 		putRequest.setHeader("X-Api-Key", apikey);
 		HttpResponse response = executeRequest(putRequest);
-		String json = response.getResponseBody();
-		int status = response.getStatusCode();
-		if (status == LHINGS_ERROR_HTTP_STATUS) {
-			int lhingsErrorCode = new JSONObject(json).getInt("responseStatus");
-			String errorMessage = new JSONObject(json).getString("message");
-			switch (lhingsErrorCode) {
-			case LHINGS_V1_API_BAD_REQUEST_ERROR_CODE:
-				throw new BadRequestException(
-						"Lhings API error. HTTP status " + status + ". Lhings error code " + lhingsErrorCode + " - "
-								+ errorMessage);
-			case LHINGS_V1_API_UNAUTHORIZED_ERROR_CODE:
-				throw new UnauthorizedException(
-						"Lhings API error. HTTP status " + status + ". Lhings error code " + lhingsErrorCode + " - "
-								+ errorMessage);
-			case LHINGS_V1_API_NOT_FOUND_ERROR_CODE:
-				throw new DeviceDoesNotExistException(
-						"Lhings API error. HTTP status " + status + ". Lhings error code " + lhingsErrorCode + " - "
-								+ errorMessage);
-			default:
-				throw new LhingsException("Lhings API error. HTTP status " + status + ". Lhings error code " + lhingsErrorCode + " - "
-						+ errorMessage);
+		checkResponseStatus(response);
+	}
+
+	/**
+	 * Sets the given string as the body of the request, compressing it with
+	 * gzip if request compression is enabled and the body is large enough.
+	 */
+	private static void setRequestBody(HttpEntityEnclosingRequestBase request,
+			String body) throws IOException {
+		byte[] bytes = body.getBytes(UTF8);
+		int threshold = requestCompressionThreshold;
+		if (threshold >= 0 && bytes.length >= threshold) {
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream(bytes.length / 2);
+			GZIPOutputStream gzip = new GZIPOutputStream(buffer);
+			gzip.write(bytes);
+			gzip.close();
+			if (buffer.size() < bytes.length) {
+				request.setHeader("Content-Encoding", "gzip");
+				request.setEntity(new ByteArrayEntity(buffer.toByteArray()));
+				transferStatistics.recordRequest(bytes.length, buffer.size(), true);
+				return;
 			}
-		} else if (status != 200 && status != 201) {
-			// HTTP error
-			throw new LhingsException("HTTP error. Code: " + status + " - " + response.getStatusMessage());
 		}
+		request.setEntity(new ByteArrayEntity(bytes));
+		transferStatistics.recordRequest(bytes.length, bytes.length, false);
 	}
 
 	private static HttpResponse executeRequest(HttpRequestBase request)
+			throws IOException, LhingsException {
+		return executeRequest(httpClient, request, null);
+	}
+
+	/**
+	 * Executes the request. If a body reader is given and the response is
+	 * successful, its body is streamed to the reader and not stored in the
+	 * returned response.
+	 */
+	private static HttpResponse executeRequest(CloseableHttpClient client,
+			HttpRequestBase request, BodyReader bodyReader)
+			throws IOException, LhingsException {
+		request.setHeader("Accept-Encoding", "gzip");
+		CloseableHttpResponse response = client.execute(request);
+		try {
+			HttpResponse httpResponse = new HttpResponse();
+			int status = response.getStatusLine().getStatusCode();
+			httpResponse.setStatusCode(status);
+			httpResponse.setStatusMessage(response.getStatusLine()
+					.getReasonPhrase());
+			Header etag = response.getFirstHeader("ETag");
+			if (etag != null)
+				httpResponse.setEtag(etag.getValue());
+			HttpEntity entity = response.getEntity();
+			if (entity == null)
+				return httpResponse;
+			Reader body = openEntityReader(entity);
+			try {
+				if (bodyReader != null && (status == 200 || status == 201))
+					bodyReader.read(body);
+				else
+					httpResponse.setResponseBody(readFully(body));
+			} finally {
+				body.close();
+			}
+			return httpResponse;
+		} finally {
+			// releases the connection back to the pool
+			response.close();
+		}
+	}
+
+	/**
+	 * Opens a reader over the content of the entity, decoding it first if it
+	 * was compressed. Transfer statistics are recorded when it is closed.
+	 */
+	private static Reader openEntityReader(HttpEntity entity)
 			throws IOException {
-		CloseableHttpClient hc = HttpClients.createDefault();
-		CloseableHttpResponse response = hc.execute(request);
-		HttpResponse httpResponse = new HttpResponse();
-		httpResponse.setStatusCode(response.getStatusLine().getStatusCode());
-		httpResponse.setStatusMessage(response.getStatusLine()
-				.getReasonPhrase());
-		// ResponseHandler<String> handler = new BasicResponseHandler();
-		// String responseBody = handler.handleResponse(response);
-		httpResponse
-				.setResponseBody(EntityUtils.toString(response.getEntity()));
-		return httpResponse;
+		Header encoding = entity.getContentEncoding();
+		boolean gzipped = encoding != null
+				&& encoding.getValue().toLowerCase().contains("gzip");
+		CountingInputStream wire = new CountingInputStream(entity.getContent());
+		InputStream in = gzipped ? new GZIPInputStream(wire) : wire;
+		Charset charset = ContentType.getOrDefault(entity).getCharset();
+		if (charset == null)
+			charset = HTTP.DEF_CONTENT_CHARSET;
+		return new InputStreamReader(new RecordingInputStream(
+				new CountingInputStream(in), wire, gzipped), charset);
+	}
+
+	private static String readFully(Reader reader) throws IOException {
+		StringBuilder body = new StringBuilder();
+		char[] chunk = new char[4096];
+		int n;
+		while ((n = reader.read(chunk)) != -1)
+			body.append(chunk, 0, n);
+		return body.toString();
+	}
+
+	/**
+	 * Records the decoded bytes of a response, together with the bytes read
+	 * from the wire, when the stream is closed.
+	 */
+	private static final class RecordingInputStream extends FilterInputStream {
+		private final CountingInputStream decoded;
+		private final CountingInputStream wire;
+		private final boolean gzipped;
+		private boolean recorded;
+
+		RecordingInputStream(CountingInputStream decoded,
+				CountingInputStream wire, boolean gzipped) {
+			super(decoded);
+			this.decoded = decoded;
+			this.wire = wire;
+			this.gzipped = gzipped;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (!recorded) {
+				recorded = true;
+				transferStatistics.recordResponse(decoded.getCount(),
+						wire.getCount(), gzipped);
+			}
+			super.close();
+		}
 	}
 
 	public static Map<String, Object> getStatus(LhingsDevice lhingsDevice,
 			String uuid) throws LhingsException, IOException {
-		String url = LHINGS_V1_API_PREFIX + "devices/" + uuid + "/states";
-		String json = executeGet(url, lhingsDevice.apiKey());
-		Map<String, Object> returnValue = new HashMap<String, Object>();
-		JSONArray array = new JSONArray(json);
-		for (int j = 0; j < array.length(); j++) {
-			JSONObject statusComponent = array.getJSONObject(j);
-			String statusCompName = statusComponent.getString("name");
-			String statusCompType = statusComponent.getString("type");
-			Object statusCompValue;
-			if (statusCompType.equals("integer"))
-				statusCompValue = statusComponent
-                                        .getInt("value");
-			else if (statusCompType.equals("float"))
-				statusCompValue = (float) statusComponent
-                                        .getDouble("value");
-			else if (statusCompType.equals("timestamp"))
-				statusCompValue = new Date(
-						(long) statusComponent.getInt("value") * 1000);
-			else if (statusCompType.equals("boolean"))
-				statusCompValue = statusComponent
-                                        .getBoolean("value");
-			else
-				statusCompValue = statusComponent.getString("value");
-			returnValue.put(statusCompName, statusCompValue);
-		}
+		return getStatus(httpClient, lhingsDevice, uuid);
+	}
+
+	private static Map<String, Object> getStatus(CloseableHttpClient client,
+			LhingsDevice lhingsDevice, String uuid) throws LhingsException,
+			IOException {
+		final Map<String, Object> returnValue = new HashMap<String, Object>();
+		executeStreamingGet(client, CachedEndpoint.DEVICE_STATUS, statusUrl(uuid),
+				lhingsDevice.apiKey(), new BodyReader() {
+					public void read(Reader body) {
+						JsonArrayReader.readStatus(body, returnValue);
+					}
+				});
 		return returnValue;
 	}
 
+	/**
+	 * Retrieves the status of several devices in parallel, running as many
+	 * requests at the same time as allowed by
+	 * {@link #setBulkConcurrency(int)}. A failure retrieving the status of one
+	 * device does not affect the rest, it is reported in the result instead.
+	 * 
+	 * @param lhingsDevice
+	 * @param uuids
+	 *            The uuids of the devices whose status is to be retrieved.
+	 * @return The status of each device retrieved and the failures.
+	 * @throws InterruptedException
+	 *             If the calling thread is interrupted while waiting for the
+	 *             requests to complete.
+	 */
+	public static BulkStatusResult getStatus(final LhingsDevice lhingsDevice,
+			Collection<String> uuids) throws InterruptedException {
+		Map<String, Future<Map<String, Object>>> pending = new LinkedHashMap<String, Future<Map<String, Object>>>();
+		for (final String uuid : uuids) {
+			if (pending.containsKey(uuid))
+				continue;
+			pending.put(uuid, submitBulk(new Callable<Map<String, Object>>() {
+				public Map<String, Object> call() throws Exception {
+					return getStatus(bulkHttpClient, lhingsDevice, uuid);
+				}
+			}));
+		}
+		BulkStatusResult result = new BulkStatusResult();
+		try {
+			for (Map.Entry<String, Future<Map<String, Object>>> entry : pending.entrySet()) {
+				try {
+					result.addStatus(entry.getKey(), entry.getValue().get());
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					result.addFailure(entry.getKey(), cause instanceof Exception ? (Exception) cause : e);
+				}
+			}
+		} catch (InterruptedException e) {
+			for (Future<Map<String, Object>> future : pending.values())
+				future.cancel(true);
+			throw e;
+		}
+		return result;
+	}
+
 	/**
 	 * Stores data in Lhings.
 	 * 
@@ -328,11 +725,26 @@ public final class WebServiceCom {
 	public static boolean storeStatus(LhingsDevice lhingsDevice,
 			Map<String, Object> statusComponentValues) throws IOException,
 			LhingsException {
-		String url = LHINGS_V1_API_PREFIX + "devices/" + lhingsDevice.uuid()
-				+ "/states";
+		return storeStatus(lhingsDevice,
+				new JSONObject(statusComponentValues).toString());
+	}
+
+	/**
+	 * Stores data in Lhings, given the JSON object with the values of the
+	 * status components already serialized.
+	 * 
+	 * @param lhingsDevice
+	 * @param requestBody
+	 * @return true if data was sucessfully stored, false otherwise
+	 * @throws IOException
+	 * @throws LhingsException
+	 */
+	public static boolean storeStatus(LhingsDevice lhingsDevice,
+			String requestBody) throws IOException, LhingsException {
+		String url = statusUrl(lhingsDevice.uuid());
 		String apikey = lhingsDevice.apiKey();
-		String requestBody = new JSONObject(statusComponentValues).toString();
 		String response = executePost(apikey, url, requestBody);
+		invalidateCachedStatus(lhingsDevice.uuid());
 		int responseStatus = new JSONObject(response).getInt("responseStatus");
 		if (responseStatus == 200)
 			return true;
@@ -402,7 +814,14 @@ public final class WebServiceCom {
 			postBody = new JSONArray(jsonObject).toString();
 		}
 		
-		return executePost(apikey, url, postBody);
+		String response = executePost(apikey, url, postBody);
+		// the action may have changed the status of the performer
+		invalidateCachedStatus(uuidDevicePerformer);
+		return response;
+	}
+
+	private static String statusUrl(String uuid) {
+		return LHINGS_V1_API_PREFIX + "devices/" + uuid + "/states";
 	}
 
 }
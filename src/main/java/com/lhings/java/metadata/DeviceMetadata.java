@@ -0,0 +1,162 @@
+/* Copyright 2014 Lyncos Technologies S. L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lhings.java.metadata;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.lhings.java.model.Action;
+import com.lhings.java.model.Argument;
+import com.lhings.java.model.Event;
+import com.lhings.java.model.StatusComponent;
+
+/**
+ * Actions, status components, events and descriptor of a device class, worked
+ * out at compile time by the lhings-java-processor annotation processor. The
+ * processor generates a subclass named after the device class with the suffix
+ * <code>_LhingsMetadata</code>, in the same package, which registers the
+ * metadata in its constructor and invokes actions and reads status components
+ * with plain Java code.
+ *
+ * When a device class has generated metadata and uses no features, the
+ * library configures the device from it instead of inspecting the class by
+ * reflection. This class is not meant to be extended by hand.
+ */
+public abstract class DeviceMetadata {
+
+	public static final String CLASS_SUFFIX = "_LhingsMetadata";
+
+	private static final Logger log = LoggerFactory.getLogger(DeviceMetadata.class);
+
+	private final String descriptor;
+	private final List<Action> actions = new ArrayList<Action>();
+	private final List<Class<?>[]> parameterTypes = new ArrayList<Class<?>[]>();
+	private final List<Class<?>> returnTypes = new ArrayList<Class<?>>();
+	private final List<String> resultNames = new ArrayList<String>();
+	private final List<StatusComponent> statusComponents = new ArrayList<StatusComponent>();
+	private final List<Event> events = new ArrayList<Event>();
+
+	protected DeviceMetadata(String descriptor) {
+		this.descriptor = descriptor;
+	}
+
+	/**
+	 * Returns the metadata generated for the given device class, or null if
+	 * the class was not compiled with the annotation processor.
+	 */
+	public static DeviceMetadata forClass(Class<?> deviceClass) {
+		String metadataClassName = deviceClass.getName().replace('$', '_') + CLASS_SUFFIX;
+		try {
+			Class<?> metadataClass = Class.forName(metadataClassName, true, deviceClass.getClassLoader());
+			return (DeviceMetadata) metadataClass.newInstance();
+		} catch (ClassNotFoundException e) {
+			return null;
+		} catch (Exception e) {
+			log.warn("Could not load generated metadata " + metadataClassName + ", device will be configured by reflection. Reason: " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Registers an action. Actions are numbered in the order they are added,
+	 * starting at zero.
+	 */
+	protected final void addAction(String name, String description, boolean payloadNeeded, String[] argumentNames, String[] argumentTypes,
+			Class<?>[] parameterTypes, Class<?> returnType, String resultName) {
+		List<Argument> inputs = new ArrayList<Argument>();
+		for (int j = 0; j < argumentNames.length; j++) {
+			inputs.add(new Argument(argumentNames[j], argumentTypes[j]));
+		}
+		Action action = new Action(name, description, inputs, null);
+		action.setPayloadNeeded(payloadNeeded);
+		actions.add(action);
+		this.parameterTypes.add(parameterTypes);
+		returnTypes.add(returnType);
+		resultNames.add(resultName);
+	}
+
+	/**
+	 * Registers a status component. Status components are numbered in the
+	 * order they are added, starting at zero.
+	 */
+	protected final void addStatusComponent(String name, String type) {
+		statusComponents.add(new StatusComponent(name, type));
+	}
+
+	protected final void addEvent(String name) {
+		addEvent(name, new String[0], new String[0]);
+	}
+
+	/**
+	 * Registers an event with the given payload components.
+	 */
+	protected final void addEvent(String name, String[] componentNames, String[] componentTypes) {
+		Event event = new Event(name);
+		for (int j = 0; j < componentNames.length; j++) {
+			event.getComponents().add(new Argument(componentNames[j], componentTypes[j]));
+		}
+		events.add(event);
+	}
+
+	/**
+	 * Invokes the action with the given number on the given device.
+	 *
+	 * @throws Exception
+	 *             Any exception thrown by the action.
+	 */
+	public abstract Object invokeAction(Object device, int action, Object[] args) throws Exception;
+
+	/**
+	 * Returns the current value of the status component with the given
+	 * number of the given device.
+	 */
+	public abstract Object readStatusComponent(Object device, int component);
+
+	/**
+	 * Returns the JSON descriptor of the device.
+	 */
+	public String getDescriptor() {
+		return descriptor;
+	}
+
+	public List<Action> getActions() {
+		return Collections.unmodifiableList(actions);
+	}
+
+	public Class<?>[] getParameterTypes(int action) {
+		return parameterTypes.get(action);
+	}
+
+	public Class<?> getReturnType(int action) {
+		return returnTypes.get(action);
+	}
+
+	public String getResultName(int action) {
+		return resultNames.get(action);
+	}
+
+	public List<StatusComponent> getStatusComponents() {
+		return Collections.unmodifiableList(statusComponents);
+	}
+
+	public List<Event> getEvents() {
+		return Collections.unmodifiableList(events);
+	}
+}
@@ -0,0 +1,71 @@
+/* Copyright 2014 Lyncos Technologies S. L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lhings.java.model;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Result of retrieving the status of several devices at once. The status of
+ * every device that could be retrieved is available through
+ * <code>getStatuses()</code>, and the reason why the rest failed through
+ * <code>getFailures()</code>.
+ */
+public class BulkStatusResult {
+
+	private final Map<String, Map<String, Object>> statuses = new LinkedHashMap<String, Map<String, Object>>();
+	private final Map<String, Exception> failures = new LinkedHashMap<String, Exception>();
+
+	public void addStatus(String uuid, Map<String, Object> status) {
+		statuses.put(uuid, status);
+	}
+
+	public void addFailure(String uuid, Exception reason) {
+		failures.put(uuid, reason);
+	}
+
+	/**
+	 * Returns the status of the devices that could be retrieved, by uuid.
+	 */
+	public Map<String, Map<String, Object>> getStatuses() {
+		return Collections.unmodifiableMap(statuses);
+	}
+
+	/**
+	 * Returns the status of the given device, or null if it could not be
+	 * retrieved.
+	 */
+	public Map<String, Object> getStatus(String uuid) {
+		return statuses.get(uuid);
+	}
+
+	/**
+	 * Returns the exception raised while retrieving the status of each device
+	 * that failed, by uuid.
+	 */
+	public Map<String, Exception> getFailures() {
+		return Collections.unmodifiableMap(failures);
+	}
+
+	/**
+	 * Returns true if the status of all the devices was retrieved.
+	 */
+	public boolean isComplete() {
+		return failures.isEmpty();
+	}
+
+}
@@ -0,0 +1,66 @@
+/* Copyright 2014 Lyncos Technologies S. L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lhings.java.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Result of bringing up a fleet of devices at once. The devices that were
+ * created and started are available through <code>getDevices()</code>, and
+ * the reason why the rest failed through <code>getFailures()</code>, by the
+ * position of their factory in the collection given.
+ */
+public class FleetBootstrapResult<T> {
+
+	private final List<T> devices = new ArrayList<T>();
+	private final Map<Integer, Exception> failures = new LinkedHashMap<Integer, Exception>();
+
+	public synchronized void addDevice(T device) {
+		devices.add(device);
+	}
+
+	public synchronized void addFailure(int index, Exception reason) {
+		failures.put(index, reason);
+	}
+
+	/**
+	 * Returns the devices that were created and started, in the order they
+	 * finished starting.
+	 */
+	public synchronized List<T> getDevices() {
+		return Collections.unmodifiableList(new ArrayList<T>(devices));
+	}
+
+	/**
+	 * Returns the exception raised while creating or starting each device that
+	 * failed, by position of its factory.
+	 */
+	public synchronized Map<Integer, Exception> getFailures() {
+		return Collections.unmodifiableMap(new LinkedHashMap<Integer, Exception>(failures));
+	}
+
+	/**
+	 * Returns true if all the devices were created and started.
+	 */
+	public synchronized boolean isComplete() {
+		return failures.isEmpty();
+	}
+
+}
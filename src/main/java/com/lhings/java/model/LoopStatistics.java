@@ -0,0 +1,83 @@
+/* Copyright 2014 Lyncos Technologies S. L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lhings.java.model;
+
+import com.lhings.java.utils.Histogram;
+
+/**
+ * Statistics of the executions of the <code>loop()</code> method of a device,
+ * taken at some point in time. Durations and jitter are in nanoseconds;
+ * jitter is the difference between the time each execution started and the
+ * time it should have started according to the loop frequency.
+ */
+public class LoopStatistics {
+
+	private final long budgetNanos;
+	private final long overruns;
+	private final long skipped;
+	private final Histogram duration;
+	private final Histogram jitter;
+
+	public LoopStatistics(long budgetNanos, long overruns, long skipped, Histogram duration, Histogram jitter) {
+		this.budgetNanos = budgetNanos;
+		this.overruns = overruns;
+		this.skipped = skipped;
+		this.duration = duration;
+		this.jitter = jitter;
+	}
+
+	/**
+	 * Returns the period of the loop, which is the time each execution is
+	 * allowed to take.
+	 */
+	public long getBudgetNanos() {
+		return budgetNanos;
+	}
+
+	public long getExecutions() {
+		return duration.getCount();
+	}
+
+	/**
+	 * Returns the number of executions that took longer than the period of
+	 * the loop.
+	 */
+	public long getOverruns() {
+		return overruns;
+	}
+
+	/**
+	 * Returns the number of executions that were skipped because the previous
+	 * one had not finished yet.
+	 */
+	public long getSkipped() {
+		return skipped;
+	}
+
+	public Histogram getDuration() {
+		return duration;
+	}
+
+	public Histogram getJitter() {
+		return jitter;
+	}
+
+	@Override
+	public String toString() {
+		return "LoopStatistics [budget=" + budgetNanos + " ns, overruns=" + overruns + ", skipped=" + skipped + ", duration: " + duration
+				+ ", jitter: " + jitter + "]";
+	}
+}
@@ -0,0 +1,88 @@
+/* Copyright 2014 Lyncos Technologies S. L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lhings.java.model;
+
+import com.lhings.java.utils.Histogram;
+
+/**
+ * Metrics of the shared timer that runs the loops and background tasks of all
+ * devices, taken at some point in time. The lag is the time tasks wait for a
+ * free thread, in nanoseconds; the timer adds threads when it grows and
+ * removes them when it stays low.
+ */
+public class SchedulerMetrics {
+
+	private final int threads;
+	private final int minThreads;
+	private final int maxThreads;
+	private final long growths;
+	private final long shrinks;
+	private final long lastLagNanos;
+	private final Histogram lag;
+
+	public SchedulerMetrics(int threads, int minThreads, int maxThreads, long growths, long shrinks, long lastLagNanos, Histogram lag) {
+		this.threads = threads;
+		this.minThreads = minThreads;
+		this.maxThreads = maxThreads;
+		this.growths = growths;
+		this.shrinks = shrinks;
+		this.lastLagNanos = lastLagNanos;
+		this.lag = lag;
+	}
+
+	/**
+	 * Returns the number of threads the timer is sized to.
+	 */
+	public int getThreads() {
+		return threads;
+	}
+
+	public int getMinThreads() {
+		return minThreads;
+	}
+
+	public int getMaxThreads() {
+		return maxThreads;
+	}
+
+	/**
+	 * Returns the number of times a thread was added because of lag.
+	 */
+	public long getGrowths() {
+		return growths;
+	}
+
+	/**
+	 * Returns the number of times a thread was removed because of low lag.
+	 */
+	public long getShrinks() {
+		return shrinks;
+	}
+
+	public long getLastLagNanos() {
+		return lastLagNanos;
+	}
+
+	public Histogram getLag() {
+		return lag;
+	}
+
+	@Override
+	public String toString() {
+		return "SchedulerMetrics [threads=" + threads + " (" + minThreads + " to " + maxThreads + "), growths=" + growths + ", shrinks="
+				+ shrinks + ", lag: " + lag + "]";
+	}
+}
@@ -0,0 +1,79 @@
+/* Copyright 2014 Lyncos Technologies S. L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lhings.java.model;
+
+/**
+ * Counters of the calls of one kind that a device made to Lhings under a rate
+ * limit, taken at some point in time.
+ */
+public class ThrottleStatistics {
+
+	private final long allowed;
+	private final long blocked;
+	private final long blockedNanos;
+	private final long dropped;
+	private final long coalesced;
+
+	public ThrottleStatistics(long allowed, long blocked, long blockedNanos, long dropped, long coalesced) {
+		this.allowed = allowed;
+		this.blocked = blocked;
+		this.blockedNanos = blockedNanos;
+		this.dropped = dropped;
+		this.coalesced = coalesced;
+	}
+
+	/**
+	 * Returns the number of calls allowed at once.
+	 */
+	public long getAllowed() {
+		return allowed;
+	}
+
+	/**
+	 * Returns the number of calls that waited until they were allowed.
+	 */
+	public long getBlocked() {
+		return blocked;
+	}
+
+	/**
+	 * Returns the total time calls waited, in nanoseconds.
+	 */
+	public long getBlockedNanos() {
+		return blockedNanos;
+	}
+
+	/**
+	 * Returns the number of calls discarded.
+	 */
+	public long getDropped() {
+		return dropped;
+	}
+
+	/**
+	 * Returns the number of calls replaced by a later one before they were
+	 * made.
+	 */
+	public long getCoalesced() {
+		return coalesced;
+	}
+
+	@Override
+	public String toString() {
+		return "ThrottleStatistics [allowed=" + allowed + ", blocked=" + blocked + ", blockedNanos=" + blockedNanos + ", dropped=" + dropped
+				+ ", coalesced=" + coalesced + "]";
+	}
+}
@@ -0,0 +1,357 @@
+/* Copyright 2014 Lyncos Technologies S. L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lhings.java.outbox;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Durable FIFO queue of the items a device could not send to Lhings. Entries
+ * are appended to a journal made of memory-mapped segment files of fixed size;
+ * when a segment is full a new one is started, and when the maximum number of
+ * segments is reached the oldest one is discarded, so the space used on disk
+ * is bounded. The position of the oldest entry not yet acknowledged is kept in
+ * a checkpoint file, so that pending entries survive a restart of the process
+ * and are replayed in order.
+ *
+ * Each record is stored as its length, a CRC32 of its contents and the
+ * contents themselves. The length is written last, so a record interrupted by
+ * a crash is never read back.
+ */
+public final class Outbox {
+
+	public static final int DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+	public static final int DEFAULT_MAX_SEGMENTS = 64;
+
+	private static final Logger log = LoggerFactory.getLogger(Outbox.class);
+	private static final String SEGMENT_SUFFIX = ".seg";
+	private static final String CHECKPOINT_FILE = "checkpoint";
+	private static final int RECORD_HEADER_SIZE = 8;
+	private static final int CHECKPOINT_SIZE = 24;
+	private static final long CHECKPOINT_MAGIC = 0x4C48494E47534F42L;
+
+	private final File directory;
+	private final int segmentSize;
+	private final int maxSegments;
+	private final TreeMap<Long, Segment> segments = new TreeMap<Long, Segment>();
+	private final MappedByteBuffer checkpoint;
+	private final RandomAccessFile checkpointFile;
+
+	private Segment writeSegment;
+	private int writeOffset;
+	private long readSegmentId;
+	private int readOffset;
+	private boolean closed;
+	// whether there may be entries not yet acknowledged, so that senders can
+	// check it on every send without decoding the oldest entry
+	private volatile boolean pending;
+
+	private static final class Segment {
+		final long id;
+		final File file;
+		final RandomAccessFile raf;
+		final MappedByteBuffer buffer;
+
+		Segment(long id, File file, int size) throws IOException {
+			this.id = id;
+			this.file = file;
+			this.raf = new RandomAccessFile(file, "rw");
+			long length = Math.max(size, raf.length());
+			this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+		}
+
+		int capacity() {
+			return buffer.capacity();
+		}
+
+		void close() {
+			buffer.force();
+			try {
+				raf.close();
+			} catch (IOException e) {
+				log.warn("Could not close outbox segment {}: {}", file, e.getMessage());
+			}
+		}
+
+		void delete() {
+			try {
+				raf.close();
+			} catch (IOException e) {
+			}
+			if (!file.delete())
+				log.debug("Outbox segment {} could not be deleted, it will be reused or removed later.", file);
+		}
+	}
+
+	/**
+	 * Opens the outbox stored in the given directory, creating it if it does
+	 * not exist, with default segment size and number of segments.
+	 */
+	public Outbox(File directory) throws IOException {
+		this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_MAX_SEGMENTS);
+	}
+
+	/**
+	 * Opens the outbox stored in the given directory, creating it if it does
+	 * not exist.
+	 *
+	 * @param directory
+	 *            Directory where segments and checkpoint are stored. It must
+	 *            not be shared with other outboxes.
+	 * @param segmentSize
+	 *            Size of each segment file in bytes. Entries larger than this
+	 *            are rejected.
+	 * @param maxSegments
+	 *            Maximum number of segment files. The outbox never uses more
+	 *            than segmentSize * maxSegments bytes on disk.
+	 * @throws IOException
+	 */
+	public Outbox(File directory, int segmentSize, int maxSegments) throws IOException {
+		if (maxSegments < 2)
+			throw new IllegalArgumentException("An outbox needs at least two segments, " + maxSegments + " given.");
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Could not create outbox directory " + directory);
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.maxSegments = maxSegments;
+
+		File[] files = directory.listFiles(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.endsWith(SEGMENT_SUFFIX);
+			}
+		});
+		for (File file : files) {
+			String name = file.getName();
+			try {
+				long id = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+				segments.put(id, new Segment(id, file, segmentSize));
+			} catch (NumberFormatException e) {
+				log.warn("Ignoring unexpected file {} in outbox directory.", file);
+			}
+		}
+		if (segments.isEmpty())
+			segments.put(Long.valueOf(0), newSegment(0));
+		writeSegment = segments.lastEntry().getValue();
+		writeOffset = findEndOfData(writeSegment);
+
+		checkpointFile = new RandomAccessFile(new File(directory, CHECKPOINT_FILE), "rw");
+		checkpoint = checkpointFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, CHECKPOINT_SIZE);
+		long savedSegment = checkpoint.getLong(0);
+		long savedOffset = checkpoint.getLong(8);
+		if (checkpoint.getLong(16) == ((savedSegment * 31 + savedOffset) ^ CHECKPOINT_MAGIC) && segments.containsKey(savedSegment)) {
+			readSegmentId = savedSegment;
+			readOffset = (int) savedOffset;
+		} else {
+			readSegmentId = segments.firstKey();
+			readOffset = 0;
+		}
+		// segments before the checkpoint were already delivered
+		while (segments.firstKey() < readSegmentId)
+			segments.remove(segments.firstKey()).delete();
+		pending = true;
+		peek();
+		log.info("Outbox opened at {} with {} segment(s).", directory, segments.size());
+	}
+
+	/**
+	 * Appends an entry at the end of the outbox.
+	 *
+	 * @return false if the entry is too large to be stored.
+	 */
+	public synchronized boolean append(OutboxEntry entry) throws IOException {
+		checkOpen();
+		byte[] record = entry.encode();
+		int recordSize = RECORD_HEADER_SIZE + record.length;
+		if (recordSize > segmentSize) {
+			log.warn("Outbox entry {} discarded: {} bytes exceed the segment size.", entry, recordSize);
+			return false;
+		}
+		if (writeOffset + recordSize > writeSegment.capacity())
+			rollOver();
+		CRC32 crc = new CRC32();
+		crc.update(record);
+		MappedByteBuffer buffer = writeSegment.buffer;
+		int end = writeOffset + recordSize;
+		if (end + 4 <= buffer.capacity())
+			buffer.putInt(end, 0);
+		ByteBuffer contents = buffer.duplicate();
+		contents.position(writeOffset + RECORD_HEADER_SIZE);
+		contents.put(record);
+		buffer.putInt(writeOffset + 4, (int) crc.getValue());
+		// the length commits the record
+		buffer.putInt(writeOffset, record.length);
+		writeOffset = end;
+		pending = true;
+		return true;
+	}
+
+	/**
+	 * Returns the oldest entry not yet acknowledged, without removing it, or
+	 * null if the outbox is empty.
+	 */
+	public synchronized OutboxEntry peek() {
+		checkOpen();
+		while (true) {
+			Segment segment = segments.get(readSegmentId);
+			byte[] record = readRecord(segment, readOffset);
+			if (record != null)
+				return OutboxEntry.decode(record);
+			if (segment == writeSegment) {
+				pending = false;
+				return null;
+			}
+			// end of a segment already delivered
+			segments.remove(readSegmentId);
+			segment.delete();
+			readSegmentId = segments.firstKey();
+			readOffset = 0;
+			saveCheckpoint();
+		}
+	}
+
+	/**
+	 * Removes the entry returned by the last call to <code>peek()</code>,
+	 * once it has been delivered.
+	 */
+	public synchronized void acknowledge() {
+		checkOpen();
+		byte[] record = readRecord(segments.get(readSegmentId), readOffset);
+		if (record == null)
+			return;
+		readOffset += RECORD_HEADER_SIZE + record.length;
+		saveCheckpoint();
+		// records are only written at the end of the last segment
+		if (readSegmentId == writeSegment.id && readOffset == writeOffset)
+			pending = false;
+	}
+
+	/**
+	 * Returns whether there are no entries waiting to be acknowledged. It does
+	 * not read the outbox, so it is cheap enough to be called on every send.
+	 */
+	public boolean isEmpty() {
+		return !pending;
+	}
+
+	/**
+	 * Returns the directory where the outbox is stored.
+	 */
+	public File getDirectory() {
+		return directory;
+	}
+
+	public int getSegmentSize() {
+		return segmentSize;
+	}
+
+	public int getMaxSegments() {
+		return maxSegments;
+	}
+
+	public synchronized boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Flushes segments and checkpoint to disk and releases the files.
+	 */
+	public synchronized void close() {
+		if (closed)
+			return;
+		closed = true;
+		for (Segment segment : segments.values())
+			segment.close();
+		checkpoint.force();
+		try {
+			checkpointFile.close();
+		} catch (IOException e) {
+			log.warn("Could not close outbox checkpoint: {}", e.getMessage());
+		}
+	}
+
+	private void checkOpen() {
+		if (closed)
+			throw new IllegalStateException("Outbox at " + directory + " is closed.");
+	}
+
+	private Segment newSegment(long id) throws IOException {
+		return new Segment(id, new File(directory, String.format("%020d", id) + SEGMENT_SUFFIX), segmentSize);
+	}
+
+	private void rollOver() throws IOException {
+		if (segments.size() >= maxSegments) {
+			Map.Entry<Long, Segment> oldest = segments.pollFirstEntry();
+			log.warn("Outbox at {} is full, discarding its oldest segment.", directory);
+			oldest.getValue().delete();
+			if (readSegmentId == oldest.getKey()) {
+				readSegmentId = segments.firstKey();
+				readOffset = 0;
+				saveCheckpoint();
+			}
+		}
+		long id = writeSegment.id + 1;
+		writeSegment = newSegment(id);
+		segments.put(id, writeSegment);
+		writeOffset = 0;
+	}
+
+	private void saveCheckpoint() {
+		checkpoint.putLong(0, readSegmentId);
+		checkpoint.putLong(8, readOffset);
+		checkpoint.putLong(16, (readSegmentId * 31 + readOffset) ^ CHECKPOINT_MAGIC);
+	}
+
+	/**
+	 * Returns the contents of the record at the given offset, or null if there
+	 * is no valid record there.
+	 */
+	private static byte[] readRecord(Segment segment, int offset) {
+		MappedByteBuffer buffer = segment.buffer;
+		if (offset + RECORD_HEADER_SIZE > buffer.capacity())
+			return null;
+		int length = buffer.getInt(offset);
+		if (length <= 0 || offset + RECORD_HEADER_SIZE + length > buffer.capacity())
+			return null;
+		byte[] record = new byte[length];
+		ByteBuffer contents = buffer.duplicate();
+		contents.position(offset + RECORD_HEADER_SIZE);
+		contents.get(record);
+		CRC32 crc = new CRC32();
+		crc.update(record);
+		if ((int) crc.getValue() != buffer.getInt(offset + 4))
+			return null;
+		return record;
+	}
+
+	private static int findEndOfData(Segment segment) {
+		int offset = 0;
+		byte[] record;
+		while ((record = readRecord(segment, offset)) != null)
+			offset += RECORD_HEADER_SIZE + record.length;
+		return offset;
+	}
+}
@@ -0,0 +1,99 @@
+/* Copyright 2014 Lyncos Technologies S. L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lhings.java.outbox;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * An item waiting in the outbox to be sent to Lhings: either an event with its
+ * payload, or the JSON body of a status update.
+ */
+public final class OutboxEntry {
+
+	public enum Type {
+		EVENT, STATUS
+	}
+
+	private static final Charset UTF8 = Charset.forName("utf-8");
+
+	private final Type type;
+	private final long timestamp;
+	private final String name;
+	private final String payload;
+
+	public OutboxEntry(Type type, String name, String payload) {
+		this(type, System.currentTimeMillis(), name, payload);
+	}
+
+	private OutboxEntry(Type type, long timestamp, String name, String payload) {
+		this.type = type;
+		this.timestamp = timestamp;
+		this.name = name == null ? "" : name;
+		this.payload = payload == null ? "" : payload;
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	/**
+	 * Returns the time the entry was queued, in milliseconds since the epoch.
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	/**
+	 * Returns the name of the event. Empty for status updates.
+	 */
+	public String getName() {
+		return name;
+	}
+
+	public String getPayload() {
+		return payload;
+	}
+
+	byte[] encode() {
+		byte[] nameBytes = name.getBytes(UTF8);
+		byte[] payloadBytes = payload.getBytes(UTF8);
+		ByteBuffer buffer = ByteBuffer.allocate(1 + 8 + 4 + nameBytes.length + 4 + payloadBytes.length);
+		buffer.put((byte) type.ordinal());
+		buffer.putLong(timestamp);
+		buffer.putInt(nameBytes.length);
+		buffer.put(nameBytes);
+		buffer.putInt(payloadBytes.length);
+		buffer.put(payloadBytes);
+		return buffer.array();
+	}
+
+	static OutboxEntry decode(byte[] bytes) {
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		Type type = Type.values()[buffer.get()];
+		long timestamp = buffer.getLong();
+		byte[] nameBytes = new byte[buffer.getInt()];
+		buffer.get(nameBytes);
+		byte[] payloadBytes = new byte[buffer.getInt()];
+		buffer.get(payloadBytes);
+		return new OutboxEntry(type, timestamp, new String(nameBytes, UTF8), new String(payloadBytes, UTF8));
+	}
+
+	@Override
+	public String toString() {
+		return type + " " + name + " queued at " + timestamp;
+	}
+}
@@ -0,0 +1,191 @@
+/* Copyright 2014 Lyncos Technologies S. L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lhings.java.pushprotocol;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keepalives of the push connection shared by all the devices of the
+ * application. The server needs one acknowledged keepalive from each device
+ * to associate the connection to it, every time the connection is
+ * established; after that a single device, the first one, keeps the
+ * connection alive for all of them.
+ *
+ * The interval between connection keepalives adapts to the network: it grows
+ * slowly while keepalives are answered, and is halved when the connection is
+ * lost after a keepalive sent following a quiet period about as long as the
+ * interval, which is taken as a sign that a NAT or idle timeout was exceeded.
+ * The ceiling for the next intervals is then set to 75% of the interval in use
+ * when the connection was lost. Losses while the connection was busy do not
+ * say anything about the timeout and leave the interval as it was. The
+ * ceiling is raised again by 25% after a sustained run of keepalives answered
+ * at the ceiling, so that a loss caused by something else does not keep the
+ * interval low for good.
+ *
+ * The manager is driven by the listener thread, which asks it for the
+ * keepalives that are due on every iteration; no task is scheduled per device.
+ */
+final class KeepaliveManager {
+
+	private static final Logger log = LoggerFactory.getLogger(KeepaliveManager.class);
+
+	static final long INITIAL_INTERVAL_MILLIS = 30000;
+	static final long MIN_INTERVAL_MILLIS = 15000;
+	// must stay well below the time after which socket managers give the
+	// connection up for dead
+	static final long MAX_INTERVAL_MILLIS = 120000;
+	private static final int ANSWERS_BEFORE_GROWING = 4;
+	private static final int ANSWERS_BEFORE_RAISING_CEILING = 32;
+
+	private final Map<String, MessageHandler> devices = new LinkedHashMap<String, MessageHandler>();
+	private final Set<String> pending = new LinkedHashSet<String>();
+	private String primary;
+	private long interval = INITIAL_INTERVAL_MILLIS;
+	private long ceiling = MAX_INTERVAL_MILLIS;
+	private int answersAtInterval;
+	private int answersAtCeiling;
+	private long lastConnectionKeepaliveSent;
+	// written by the listener thread for every message received
+	private volatile long lastReceived;
+	private long nextConnectionKeepalive;
+	private long nextPendingKeepalives;
+	// read without locking on every iteration of the listener thread
+	private volatile long nextDue;
+
+	/**
+	 * Starts keeping the connection alive for the given device.
+	 */
+	synchronized void add(String uuid, MessageHandler handler) {
+		devices.put(uuid, handler);
+		pending.add(uuid);
+		if (primary == null) {
+			primary = uuid;
+			nextConnectionKeepalive = 0;
+		}
+		nextPendingKeepalives = 0;
+		nextDue = 0;
+	}
+
+	synchronized void remove(String uuid) {
+		devices.remove(uuid);
+		pending.remove(uuid);
+		if (uuid.equals(primary)) {
+			primary = devices.isEmpty() ? null : devices.keySet().iterator().next();
+			if (primary != null)
+				log.debug("Device {} will be the only one sending keepalives.", primary);
+		}
+	}
+
+	/**
+	 * Called when the server answers a keepalive of the given device.
+	 */
+	synchronized void answered(String uuid) {
+		if (pending.remove(uuid) && !uuid.equals(primary))
+			log.debug("No more keepalives will be sent for device {}.", uuid);
+		if (!uuid.equals(primary))
+			return;
+		answersAtInterval++;
+		if (interval >= ceiling && ceiling < MAX_INTERVAL_MILLIS && ++answersAtCeiling >= ANSWERS_BEFORE_RAISING_CEILING) {
+			ceiling = Math.min(MAX_INTERVAL_MILLIS, ceiling + ceiling / 4);
+			answersAtCeiling = 0;
+			log.debug("Connection keepalive ceiling raised to {} ms.", ceiling);
+		}
+		if (answersAtInterval >= ANSWERS_BEFORE_GROWING && interval < ceiling) {
+			interval = Math.min(ceiling, interval + interval / 4);
+			answersAtInterval = 0;
+			log.debug("Connection keepalive interval raised to {} ms.", interval);
+		}
+	}
+
+	/**
+	 * Called by the listener thread when a message is received from the
+	 * server.
+	 */
+	void received(long now) {
+		lastReceived = now;
+	}
+
+	/**
+	 * Called when the connection was lost and established again.
+	 */
+	synchronized void connectionLost(long now) {
+		// only a keepalive sent after the connection was quiet for about an
+		// interval tells that the interval exceeds an idle timeout
+		long quiet = lastConnectionKeepaliveSent - lastReceived;
+		if (lastConnectionKeepaliveSent > 0 && quiet >= interval - interval / 4) {
+			// the interval in use is known to exceed the timeout, and the
+			// timeout may be shorter still, so the interval is kept from
+			// growing back to within 25% of it
+			ceiling = Math.max(MIN_INTERVAL_MILLIS, interval - interval / 4);
+			interval = Math.max(MIN_INTERVAL_MILLIS, interval / 2);
+			answersAtInterval = 0;
+			answersAtCeiling = 0;
+			log.info("Connection was lost, keepalive interval lowered to " + interval + " ms. Sending one keepalive per device.");
+		} else {
+			log.info("Connection was lost, keepalive interval kept at " + interval + " ms. Sending one keepalive per device.");
+		}
+		lastConnectionKeepaliveSent = 0;
+		lastReceived = now;
+		pending.addAll(devices.keySet());
+		nextConnectionKeepalive = 0;
+		nextPendingKeepalives = 0;
+		nextDue = 0;
+	}
+
+	/**
+	 * Returns the keepalives that must be sent now, or null if none is due.
+	 */
+	List<byte[]> due(long now) {
+		if (now < nextDue)
+			return null;
+		synchronized (this) {
+			List<byte[]> keepalives = new ArrayList<byte[]>();
+			if (!pending.isEmpty() && now >= nextPendingKeepalives) {
+				// devices whose keepalive is not answered try again after an
+				// interval
+				for (String uuid : pending) {
+					keepalives.add(devices.get(uuid).keepAliveMessage());
+				}
+				nextPendingKeepalives = now + interval;
+				if (pending.contains(primary)) {
+					nextConnectionKeepalive = now + interval;
+					lastConnectionKeepaliveSent = now;
+				}
+			}
+			if (primary != null && now >= nextConnectionKeepalive) {
+				keepalives.add(devices.get(primary).keepAliveMessage());
+				nextConnectionKeepalive = now + interval;
+				lastConnectionKeepaliveSent = now;
+			}
+			nextDue = pending.isEmpty() ? nextConnectionKeepalive : Math.min(nextConnectionKeepalive, nextPendingKeepalives);
+			if (primary == null && pending.isEmpty())
+				nextDue = Long.MAX_VALUE;
+			return keepalives.isEmpty() ? null : keepalives;
+		}
+	}
+
+	synchronized long getInterval() {
+		return interval;
+	}
+}
@@ -17,23 +17,43 @@ package com.lhings.java.pushprotocol;
 
 import java.io.PrintWriter;
 import java.io.StringWriter;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.fasterxml.uuid.impl.UUIDUtil;
 import com.lhings.java.LhingsDevice;
 import com.lhings.java.exception.LhingsException;
-
+import com.lhings.java.stun.LyncnatProtocol;
+import com.lhings.java.stun.STUNMessage;
+
+/**
+ * Thread that owns the push connection shared by all the devices of the
+ * application. It sends the messages queued by the devices and hands every
+ * message received to the handler registered for the device it is addressed
+ * to, as soon as it arrives. It also sends the keepalives of the connection,
+ * see {@link KeepaliveManager}.
+ */
 public class ListenerThread implements Runnable {
 
 	private static Logger log = LoggerFactory.getLogger(ListenerThread.class);
 	private static ListenerThread instance;
-	private BlockingQueue<byte[]> receivedMessages = new LinkedBlockingQueue<byte[]>();
-	private BlockingQueue<byte[]> messagesToSend = new LinkedBlockingQueue<byte[]>();
-
-	private boolean running = true;
+	private final ConcurrentMap<String, MessageHandler> handlers = new ConcurrentHashMap<String, MessageHandler>();
+	private final KeepaliveManager keepalives = new KeepaliveManager();
+	private int connections;
+	// rounds of the outbound queue sent on each iteration, so that receiving
+	// is not delayed for long by a burst of messages to send
+	private static final int MAX_ROUNDS_PER_ITERATION = 8;
+	private final OutboundQueue outbound = new OutboundQueue();
+	private final List<byte[]> sending = new ArrayList<byte[]>();
+
+	private volatile boolean running = true;
+	private Thread thread;
 	private SocketManager socketMan;
 
 	/**
@@ -45,6 +65,8 @@ public class ListenerThread implements Runnable {
 	private ListenerThread(SocketManager socketMan) throws LhingsException {
 		this.socketMan = socketMan;
 		socketMan.init();
+		if (socketMan instanceof AbstractSocketManager)
+			connections = ((AbstractSocketManager) socketMan).getConnections();
 	}
 
 	/**
@@ -55,17 +77,39 @@ public class ListenerThread implements Runnable {
 	 * @throws LhingsException
 	 *             If the socket for push communications
 	 */
-	public static ListenerThread getInstance(LhingsDevice device, SocketManager socketManager) throws LhingsException {
+	public static synchronized ListenerThread getInstance(LhingsDevice device, SocketManager socketManager) throws LhingsException {
 		if (instance != null)
 			return instance;
 		instance = new ListenerThread(socketManager);
 		Thread listenerThread = new Thread(instance);
 		listenerThread.setName("thr-list-" + device.uuid().substring(0, 5));
 		device.setPort(socketManager.getPort());
+		instance.thread = listenerThread;
 		listenerThread.start();
 		return instance;
 	}
 
+	/**
+	 * Stops the listener thread and closes the push connection, when no
+	 * device uses them any more. The next call to <code>getInstance()</code>
+	 * opens a new connection.
+	 */
+	public static synchronized void shutdown() {
+		if (instance == null)
+			return;
+		instance.stop();
+		// let the thread finish what it is doing, so that it does not try to
+		// reconnect when the socket is closed
+		try {
+			instance.thread.join(1000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		instance.socketMan.close();
+		instance = null;
+		log.info("Push connection closed.");
+	}
+
 	public void run() {
 		// main listening loop
 		while (running) {
@@ -74,18 +118,10 @@ public class ListenerThread implements Runnable {
 				messageReceived = socketMan.receive();
 
 				if (messageReceived != null) {
-					// store message for main device thread consumption
-					receivedMessages.add(messageReceived);
+					dispatch(messageReceived);
 				}
-				// read new message to send, if any
-				byte[] messageSent = messagesToSend.poll();
-				
-				if (messageSent == null)
-					continue;
-				
-				socketMan.send(messageSent);
-			} catch (LhingsException ex) {
-				log.error("Network error sending message to server: {}", ex.getMessage());
+				queueKeepalives();
+				sendQueuedMessages();
 			} catch (Exception ex) {
 				StringWriter sw = new StringWriter();
 				ex.printStackTrace(new PrintWriter(sw));
@@ -99,15 +135,110 @@ public class ListenerThread implements Runnable {
 		running = false;
 	}
 
+	/**
+	 * Queues a message to be sent with the lowest priority.
+	 */
 	public void send(byte[] message) {
-		messagesToSend.add(message);
+		send(message, OutboundQueue.Priority.BULK);
 	}
 
-	public byte[] remove() {
-		return receivedMessages.poll();
+	/**
+	 * Queues a message to be sent with the given priority.
+	 */
+	public void send(byte[] message, OutboundQueue.Priority priority) {
+		outbound.offer(message, priority);
+	}
+
+	/**
+	 * Returns the queue of messages waiting to be sent, to inspect its lanes.
+	 */
+	public OutboundQueue getOutboundQueue() {
+		return outbound;
 	}
 
-	public byte[] readMessage() {
-		return receivedMessages.peek();
+	/**
+	 * Registers the handler of the messages addressed to the device with the
+	 * given uuid, replacing the previous one if any.
+	 */
+	public void register(String uuid, MessageHandler handler) {
+		handlers.put(uuid.toLowerCase(), handler);
+	}
+
+	public void unregister(String uuid) {
+		handlers.remove(uuid.toLowerCase());
+		keepalives.remove(uuid.toLowerCase());
+	}
+
+	/**
+	 * Starts keeping the connection alive on behalf of the device with the
+	 * given uuid, which must be registered. Keepalives stop when the device is
+	 * unregistered.
+	 */
+	public void startKeepalives(String uuid) {
+		MessageHandler handler = handlers.get(uuid.toLowerCase());
+		if (handler != null)
+			keepalives.add(uuid.toLowerCase(), handler);
+	}
+
+	private void sendQueuedMessages() {
+		for (int round = 0; round < MAX_ROUNDS_PER_ITERATION && !outbound.isEmpty(); round++) {
+			outbound.drainRound(sending);
+			for (byte[] message : sending) {
+				try {
+					socketMan.send(message);
+				} catch (LhingsException ex) {
+					log.error("Network error sending message to server: {}", ex.getMessage());
+				}
+			}
+			sending.clear();
+		}
+	}
+
+	private void queueKeepalives() {
+		long now = System.currentTimeMillis();
+		if (socketMan instanceof AbstractSocketManager) {
+			int current = ((AbstractSocketManager) socketMan).getConnections();
+			if (current != connections) {
+				connections = current;
+				keepalives.connectionLost(now);
+			}
+		}
+		List<byte[]> due = keepalives.due(now);
+		if (due == null)
+			return;
+		log.debug("Sending {} keepalives", due.size());
+		for (byte[] keepalive : due) {
+			outbound.offer(keepalive, OutboundQueue.Priority.KEEPALIVE);
+		}
+	}
+
+	private void dispatch(byte[] rawMessage) {
+		keepalives.received(System.currentTimeMillis());
+		STUNMessage message = STUNMessage.getSTUNMessage(rawMessage);
+		if (message == null) {
+			log.warn("Could not process message from server: not well formed.");
+			return;
+		}
+		byte[] uuidBytes = message.getAttribute(LyncnatProtocol.attrLyncportId);
+		if (uuidBytes == null) {
+			log.warn("Could not process message from server: null UUID returned from server");
+			return;
+		}
+		UUID messageUuid = UUIDUtil.uuid(uuidBytes);
+		if (message.getMethod() == LyncnatProtocol.mKeepAlive && (message.isSuccessResponse() || message.isErrorResponse())) {
+			keepalives.answered(messageUuid.toString());
+			if (socketMan instanceof AbstractSocketManager)
+				((AbstractSocketManager) socketMan).keepaliveAnswerReceived();
+		}
+		MessageHandler handler = handlers.get(messageUuid.toString());
+		if (handler == null) {
+			log.debug("Discarding message addressed to device " + messageUuid + ", which is not running.");
+			return;
+		}
+		try {
+			handler.messageReceived(message);
+		} catch (RuntimeException e) {
+			log.error("Unexpected exception thrown while processing message: " + e.getMessage(), e);
+		}
 	}
 }
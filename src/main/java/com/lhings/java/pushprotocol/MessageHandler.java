@@ -0,0 +1,37 @@
+/* Copyright 2014 Lyncos Technologies S. L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lhings.java.pushprotocol;
+
+import com.lhings.java.stun.STUNMessage;
+
+/**
+ * Endpoint of one device in the push connection: receives the messages that
+ * the server sends to the device, and provides the keepalives that the
+ * listener thread sends on its behalf. Handlers are called from the listener
+ * thread, so they must hand any long work to another thread.
+ */
+public interface MessageHandler {
+
+	/**
+	 * Called when a message addressed to the device of this handler arrives.
+	 */
+	void messageReceived(STUNMessage message);
+
+	/**
+	 * Returns a new keepalive message of the device of this handler.
+	 */
+	byte[] keepAliveMessage();
+}
@@ -0,0 +1,174 @@
+/* Copyright 2014 Lyncos Technologies S. L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lhings.java.pushprotocol;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Queue of the messages waiting to be sent through the push connection, with
+ * one bounded lane per priority. Lanes are drained in rounds: each round
+ * takes up to the weight of each lane from it, highest priority first, so
+ * responses to the server go out before anything else without starving the
+ * lower lanes. Messages that do not fit in their lane are dropped and
+ * counted; drops are logged at most once every 10 seconds per lane, since they
+ * come in bursts.
+ */
+public final class OutboundQueue {
+
+	private static final Logger log = LoggerFactory.getLogger(OutboundQueue.class);
+	private static final long NANOS_BETWEEN_DROP_WARNINGS = TimeUnit.SECONDS.toNanos(10);
+
+	/**
+	 * Priority of a message, from highest to lowest.
+	 */
+	public enum Priority {
+		/**
+		 * Responses to actions and status requests, which the server is
+		 * waiting for.
+		 */
+		RESPONSE(8, 1024),
+		/**
+		 * Keepalives of the connection.
+		 */
+		KEEPALIVE(4, 1024),
+		/**
+		 * Any other message.
+		 */
+		BULK(1, 4096);
+
+		private final int weight;
+		private final int capacity;
+
+		private Priority(int weight, int capacity) {
+			this.weight = weight;
+			this.capacity = capacity;
+		}
+
+		/**
+		 * Returns the number of messages of this priority sent in each round.
+		 */
+		public int getWeight() {
+			return weight;
+		}
+
+		/**
+		 * Returns the maximum number of messages of this priority waiting.
+		 */
+		public int getCapacity() {
+			return capacity;
+		}
+	}
+
+	private static final Priority[] PRIORITIES = Priority.values();
+
+	private final Lane[] lanes = new Lane[PRIORITIES.length];
+
+	private static final class Lane {
+		private final BlockingQueue<byte[]> messages;
+		private final AtomicLong dropped = new AtomicLong();
+		// time of the last warning and count of drops it reported, so that
+		// only the producer that wins the race logs
+		private final AtomicLong lastWarning = new AtomicLong();
+		private volatile long droppedAtLastWarning;
+
+		Lane(int capacity) {
+			messages = new ArrayBlockingQueue<byte[]>(capacity);
+		}
+	}
+
+	public OutboundQueue() {
+		for (Priority priority : PRIORITIES) {
+			lanes[priority.ordinal()] = new Lane(priority.getCapacity());
+		}
+	}
+
+	/**
+	 * Queues a message with the given priority.
+	 *
+	 * @return false if the lane of the priority is full and the message was
+	 *         dropped.
+	 */
+	public boolean offer(byte[] message, Priority priority) {
+		Lane lane = lanes[priority.ordinal()];
+		if (lane.messages.offer(message))
+			return true;
+		long dropped = lane.dropped.incrementAndGet();
+		long now = System.nanoTime();
+		long last = lane.lastWarning.get();
+		if ((dropped == 1 || now - last >= NANOS_BETWEEN_DROP_WARNINGS) && lane.lastWarning.compareAndSet(last, now)) {
+			long since = dropped - lane.droppedAtLastWarning;
+			lane.droppedAtLastWarning = dropped;
+			log.warn("Outbound lane " + priority + " is full, " + since + " messages dropped since the last warning (" + dropped
+					+ " so far).");
+		}
+		return false;
+	}
+
+	/**
+	 * Moves to the given list the messages of one round of draining.
+	 *
+	 * @return The number of messages moved.
+	 */
+	public int drainRound(List<byte[]> out) {
+		int drained = 0;
+		for (Priority priority : PRIORITIES) {
+			drained += lanes[priority.ordinal()].messages.drainTo(out, priority.getWeight());
+		}
+		return drained;
+	}
+
+	public boolean isEmpty() {
+		for (Lane lane : lanes) {
+			if (!lane.messages.isEmpty())
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the number of messages of the given priority waiting.
+	 */
+	public int size(Priority priority) {
+		return lanes[priority.ordinal()].messages.size();
+	}
+
+	/**
+	 * Returns the number of messages of the given priority dropped because
+	 * their lane was full.
+	 */
+	public long getDropped(Priority priority) {
+		return lanes[priority.ordinal()].dropped.get();
+	}
+
+	/**
+	 * Returns the number of messages of any priority dropped because their
+	 * lane was full.
+	 */
+	public long getDropped() {
+		long dropped = 0;
+		for (Lane lane : lanes) {
+			dropped += lane.dropped.get();
+		}
+		return dropped;
+	}
+}
@@ -68,17 +68,13 @@ public class SSLSocketManager extends AbstractSocketManager {
 			}
 		}
 		log.info("Device socket ready, bound to port {}", clientPort);
-		// after connection success we empty manageUuids so that all devices
-		// are allowed again to send one keepalive to allow the server to
-		// associate a TCP worker to them (fixes issue #129 in
-		// bitbucket/openiusadmin)
-		log.info("Clearing keepalive success list to allow all devices to send one keepalive.");
-		keepaliveSuccess.clear();
+		// the keepalive manager sends again one keepalive per device, so
+		// that the server associates the new connection to all of them (fixes
+		// issue #129 in bitbucket/openiusadmin)
+		connectionEstablished();
 	}
 
 	public void send(byte[] bytes) throws LhingsException {
-		if (!messageNeedsToBeSent(bytes))
-			return;
 		try {
 			checkKeepaliveTimeout();
 			out.write(bytes);
@@ -120,7 +116,6 @@ public class SSLSocketManager extends AbstractSocketManager {
 				byte[] bytes = readBuffer.toByteArray();
 				messageLength = -1;
 				readBuffer.reset();
-				isKeepAliveMessageAnswer(bytes);
 				return bytes;
 			}
 		}
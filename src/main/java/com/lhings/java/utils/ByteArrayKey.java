@@ -0,0 +1,60 @@
+/* Copyright 2014 Lyncos Technologies S. L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lhings.java.utils;
+
+import java.util.Arrays;
+
+/**
+ * Wrapper for byte arrays with value based equals and hashCode, so that raw
+ * attributes of STUN messages (for instance the name of an action) can be
+ * used as keys in HashMaps without decoding them first.
+ */
+public final class ByteArrayKey {
+	private final byte[] data;
+	private final int hash;
+
+	public ByteArrayKey(byte[] data) {
+		if (data == null) {
+			throw new NullPointerException();
+		}
+		this.data = data;
+		this.hash = Arrays.hashCode(data);
+	}
+
+	public byte[] getBytes() {
+		return data;
+	}
+
+	@Override
+	public boolean equals(Object other) {
+		if (!(other instanceof ByteArrayKey)) {
+			return false;
+		}
+		ByteArrayKey key = (ByteArrayKey) other;
+		return hash == key.hash && Arrays.equals(data, key.data);
+	}
+
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+
+	@Override
+	public String toString() {
+		return ByteMan.byteArrayToHexString(data);
+	}
+
+}
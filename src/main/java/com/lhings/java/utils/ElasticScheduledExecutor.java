@@ -0,0 +1,226 @@
+/* Copyright 2014 Lyncos Technologies S. L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lhings.java.utils;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Scheduled executor that adjusts its number of threads to the load, within
+ * bounds that can be changed at any time. While the bounds differ, a probe
+ * task scheduled at a fixed rate measures how late the executor runs it,
+ * which is how long tasks wait for a free thread: when the lag exceeds a
+ * threshold a thread is added, and when the lag stays negligible for a while
+ * a thread is removed.
+ *
+ * Tasks may hand their work over to a pool of their own, like the workers
+ * of a {@link PeriodicGroupScheduler}. Such a pool can be attached to the
+ * executor, see <code>setAttachedPool()</code>: it is then resized along with
+ * the executor, and its lag counts as lag of the executor.
+ *
+ * The lag measured and the number of times the executor grew and shrank are
+ * available as metrics, see <code>getLag()</code>.
+ */
+public final class ElasticScheduledExecutor extends ScheduledThreadPoolExecutor {
+
+	private static final Logger log = LoggerFactory.getLogger(ElasticScheduledExecutor.class);
+
+	private static final long PROBE_PERIOD_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+	private static final long GROW_LAG_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+	private static final long SHRINK_LAG_NANOS = TimeUnit.MILLISECONDS.toNanos(2);
+	// quiet probes in a row needed to remove a thread, so that the executor
+	// shrinks much slower than it grows
+	private static final int QUIET_PROBES_BEFORE_SHRINKING = 60;
+
+	private volatile int minThreads;
+	private volatile int maxThreads;
+	private final Histogram lag = new Histogram();
+	private final AtomicLong growths = new AtomicLong();
+	private final AtomicLong shrinks = new AtomicLong();
+	private volatile long lastLagNanos;
+	// scheduled only while the bounds let the executor resize itself
+	private ScheduledFuture<?> probeTask;
+	// only used by the probe once it is scheduled, and it never runs
+	// concurrently with itself
+	private long nextProbe;
+	private int quietProbes;
+	private volatile AttachedPool attachedPool;
+
+	/**
+	 * Pool of threads that runs work handed over by the tasks of the
+	 * executor.
+	 */
+	public interface AttachedPool {
+		/**
+		 * Called with the new number of threads of the executor every time it
+		 * is resized.
+		 */
+		void resize(int threads);
+
+		/**
+		 * Returns the highest time work waited in the pool since the last
+		 * call, in nanoseconds.
+		 */
+		long takeLagNanos();
+	}
+
+	/**
+	 * @param threads
+	 *            Initial number of threads.
+	 * @param minThreads
+	 *            Minimum number of threads.
+	 * @param maxThreads
+	 *            Maximum number of threads.
+	 */
+	public ElasticScheduledExecutor(int threads, int minThreads, int maxThreads) {
+		super(threads, Executors.defaultThreadFactory());
+		setBounds(minThreads, maxThreads);
+	}
+
+	/**
+	 * Sets the bounds of the number of threads, resizing the executor at once
+	 * if its current size is out of them. Equal bounds disable resizing.
+	 */
+	public synchronized void setBounds(int minThreads, int maxThreads) {
+		if (minThreads < 1 || maxThreads < minThreads)
+			throw new IllegalArgumentException("Invalid bounds for the number of threads: " + minThreads + " to " + maxThreads + ".");
+		this.minThreads = minThreads;
+		this.maxThreads = maxThreads;
+		resize(Math.min(maxThreads, Math.max(minThreads, getCorePoolSize())));
+		if (minThreads < maxThreads && probeTask == null) {
+			nextProbe = System.nanoTime() + PROBE_PERIOD_NANOS;
+			quietProbes = 0;
+			probeTask = scheduleAtFixedRate(new Runnable() {
+				public void run() {
+					probe();
+				}
+			}, PROBE_PERIOD_NANOS, PROBE_PERIOD_NANOS, TimeUnit.NANOSECONDS);
+		} else if (minThreads == maxThreads && probeTask != null) {
+			probeTask.cancel(false);
+			probeTask = null;
+		}
+	}
+
+	/**
+	 * Sets the number of threads. An executor of fixed size keeps the new
+	 * size; otherwise the bounds are widened if needed to include it, and the
+	 * executor goes on resizing itself from there.
+	 */
+	public synchronized void setThreads(int threads) {
+		if (threads < 1)
+			throw new IllegalArgumentException("Invalid number of threads: " + threads + ".");
+		if (minThreads == maxThreads)
+			setBounds(threads, threads);
+		else
+			setBounds(Math.min(minThreads, threads), Math.max(maxThreads, threads));
+		resize(threads);
+	}
+
+	/**
+	 * Attaches the given pool to the executor, resizing it at once to the
+	 * size of the executor, or detaches the current one if null.
+	 */
+	public synchronized void setAttachedPool(AttachedPool attachedPool) {
+		this.attachedPool = attachedPool;
+		if (attachedPool != null)
+			attachedPool.resize(getCorePoolSize());
+	}
+
+	private void probe() {
+		long now = System.nanoTime();
+		long lagNanos = Math.max(0, now - nextProbe);
+		AttachedPool pool = attachedPool;
+		if (pool != null)
+			lagNanos = Math.max(lagNanos, pool.takeLagNanos());
+		nextProbe += PROBE_PERIOD_NANOS;
+		if (now - nextProbe > PROBE_PERIOD_NANOS) {
+			// probes were missed, measure the next one from now
+			nextProbe = now + PROBE_PERIOD_NANOS;
+		}
+		lag.record(lagNanos);
+		lastLagNanos = lagNanos;
+
+		synchronized (this) {
+			int threads = getCorePoolSize();
+			if (lagNanos > GROW_LAG_NANOS) {
+				quietProbes = 0;
+				if (threads < maxThreads) {
+					resize(threads + 1);
+					growths.incrementAndGet();
+					log.info("Tasks waited " + TimeUnit.NANOSECONDS.toMillis(lagNanos) + " ms for a thread, shared timer grown to " + (threads + 1)
+							+ " threads.");
+				}
+			} else if (lagNanos < SHRINK_LAG_NANOS) {
+				quietProbes++;
+				if (quietProbes >= QUIET_PROBES_BEFORE_SHRINKING && threads > minThreads) {
+					quietProbes = 0;
+					resize(threads - 1);
+					shrinks.incrementAndGet();
+					log.info("Shared timer shrunk to " + (threads - 1) + " threads.");
+				}
+			} else {
+				quietProbes = 0;
+			}
+		}
+	}
+
+	private void resize(int threads) {
+		// idle threads above the core size are let go after the keep alive time
+		setCorePoolSize(threads);
+		AttachedPool pool = attachedPool;
+		if (pool != null)
+			pool.resize(threads);
+	}
+
+	public int getMinThreads() {
+		return minThreads;
+	}
+
+	public int getMaxThreads() {
+		return maxThreads;
+	}
+
+	/**
+	 * Returns the histogram of the lag measured by the probe, in nanoseconds.
+	 */
+	public Histogram getLag() {
+		return lag;
+	}
+
+	public long getLastLagNanos() {
+		return lastLagNanos;
+	}
+
+	/**
+	 * Returns the number of times a thread was added because of lag.
+	 */
+	public long getGrowths() {
+		return growths.get();
+	}
+
+	/**
+	 * Returns the number of times a thread was removed because of low lag.
+	 */
+	public long getShrinks() {
+		return shrinks.get();
+	}
+}
@@ -0,0 +1,132 @@
+/* Copyright 2014 Lyncos Technologies S. L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lhings.java.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of non negative long values, such as durations in nanoseconds,
+ * with buckets of logarithmic size: every power of two is split in eight
+ * buckets, so values are recorded with a precision of about 12% whatever
+ * their magnitude. Recording a value takes constant time, allocates nothing
+ * and needs no locking, so it can be done on every execution of a loop.
+ */
+public final class Histogram {
+
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	public void record(long value) {
+		if (value < 0)
+			value = 0;
+		counts.incrementAndGet(indexOf(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		long currentMax = max.get();
+		while (value > currentMax && !max.compareAndSet(currentMax, value)) {
+			currentMax = max.get();
+		}
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public long getMean() {
+		long n = count.get();
+		return n == 0 ? 0 : sum.get() / n;
+	}
+
+	/**
+	 * Returns a value that is greater than or equal to the given fraction of
+	 * the recorded values, within the precision of the histogram.
+	 *
+	 * @param fraction
+	 *            Fraction between 0 and 1, for instance 0.99 for the 99th
+	 *            percentile.
+	 */
+	public long getPercentile(double fraction) {
+		long n = count.get();
+		if (n == 0)
+			return 0;
+		long target = (long) Math.ceil(Math.min(1, Math.max(0, fraction)) * n);
+		long seen = 0;
+		for (int j = 0; j < BUCKETS; j++) {
+			seen += counts.get(j);
+			if (seen >= target && seen > 0)
+				return Math.min(lowestValueOf(j + 1) - 1, max.get());
+		}
+		return max.get();
+	}
+
+	/**
+	 * Returns a copy of this histogram, which does not change when new values
+	 * are recorded in this one.
+	 */
+	public Histogram copy() {
+		Histogram copy = new Histogram();
+		for (int j = 0; j < BUCKETS; j++) {
+			copy.counts.set(j, counts.get(j));
+		}
+		copy.count.set(count.get());
+		copy.sum.set(sum.get());
+		copy.max.set(max.get());
+		return copy;
+	}
+
+	public void reset() {
+		for (int j = 0; j < BUCKETS; j++) {
+			counts.set(j, 0);
+		}
+		count.set(0);
+		sum.set(0);
+		max.set(0);
+	}
+
+	private static int indexOf(long value) {
+		if (value < SUB_BUCKETS)
+			return (int) value;
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+	}
+
+	private static long lowestValueOf(int index) {
+		if (index < SUB_BUCKETS)
+			return index;
+		if (index >= BUCKETS)
+			return Long.MAX_VALUE;
+		int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		return ((long) (SUB_BUCKETS + index % SUB_BUCKETS)) << (exponent - SUB_BUCKET_BITS);
+	}
+
+	@Override
+	public String toString() {
+		return "count=" + getCount() + ", mean=" + getMean() + ", p50=" + getPercentile(0.5) + ", p99=" + getPercentile(0.99) + ", max="
+				+ getMax();
+	}
+}
@@ -0,0 +1,378 @@
+/* Copyright 2014 Lyncos Technologies S. L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lhings.java.utils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Scheduler of periodic tasks that share their period. Instead of scheduling
+ * every task on its own, tasks with the same period are kept in a group that
+ * is scheduled once in the underlying executor: on every tick the group walks
+ * the arrays of its tasks and runs them one after another. The cost of a tick
+ * does not depend on the size of the delay queue of the executor, and no
+ * object is allocated per task and tick, so thousands of tasks can be hosted
+ * with little overhead.
+ *
+ * The tasks of a group are split in shards. The first one runs in the thread
+ * of the tick, and the rest in parallel on a pool of worker threads of the
+ * scheduler, whose queue is an array, so handing them over allocates nothing
+ * either. If a shard is still running when the next tick comes, the shard
+ * skips that tick. The number of shards, and of workers with it, can be
+ * changed at any time with <code>setShards()</code>; the tasks are then
+ * spread again among the new shards.
+ *
+ * The time shards wait for a worker, and how much longer than the period
+ * they take, is reported by <code>takeLagNanos()</code>, so that the number of shards can
+ * follow the load.
+ *
+ * Groups tick either with a fixed delay between the end of a tick and the
+ * start of the next one, or at a fixed rate, where ticks are due at multiples
+ * of the period from the start of the group and late ticks are caught up, so
+ * the rate does not drift when ticks take long.
+ */
+public final class PeriodicGroupScheduler {
+
+	private static final Logger log = LoggerFactory.getLogger(PeriodicGroupScheduler.class);
+	private static final Slot[] NO_SLOTS = new Slot[0];
+	// shards waiting for a worker; a shard that finds the queue full, or the
+	// workers shut down, runs in the thread of the tick instead
+	private static final int QUEUED_SHARDS = 1024;
+
+	private final ScheduledExecutorService executor;
+	private final ThreadPoolExecutor workers;
+	private volatile int shards;
+	private final Map<Long, Group> groups = new HashMap<Long, Group>();
+	private final Map<Long, Group> fixedRateGroups = new HashMap<Long, Group>();
+	// highest lag seen since the last call to takeLagNanos()
+	private final AtomicLong maxLag = new AtomicLong();
+
+	/**
+	 * Handle of a task added to the scheduler.
+	 */
+	public interface Registration {
+		/**
+		 * Removes the task from the scheduler. A tick already in progress may
+		 * still run it once.
+		 */
+		void cancel();
+	}
+
+	/**
+	 * @param executor
+	 *            Executor that runs the ticks of the groups.
+	 * @param shards
+	 *            Number of shards each group is split in, usually the number
+	 *            of threads of the executor. All but one run on workers of
+	 *            the scheduler.
+	 */
+	public PeriodicGroupScheduler(ScheduledExecutorService executor, int shards) {
+		this.executor = executor;
+		this.shards = Math.max(1, shards);
+		int threads = Math.max(1, this.shards - 1);
+		// workers are started on demand, so a single shard needs none
+		workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(QUEUED_SHARDS),
+				new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "thr-shard-" + count.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				}, new RejectedExecutionHandler() {
+					public void rejectedExecution(Runnable shard, ThreadPoolExecutor pool) {
+						shard.run();
+					}
+				});
+	}
+
+	/**
+	 * Runs the given task periodically, starting one period from now or at
+	 * the next tick of the group of tasks with the same period.
+	 */
+	public Registration schedule(Runnable task, long period, TimeUnit unit) {
+		return schedule(task, period, unit, false);
+	}
+
+	/**
+	 * Runs the given task periodically, with a fixed delay between ticks or
+	 * at a fixed rate.
+	 */
+	public synchronized Registration schedule(Runnable task, long period, TimeUnit unit, boolean fixedRate) {
+		long periodNanos = Math.max(1, unit.toNanos(period));
+		Map<Long, Group> groupsOfMode = fixedRate ? fixedRateGroups : groups;
+		Group group = groupsOfMode.get(periodNanos);
+		if (group == null) {
+			group = new Group(periodNanos, fixedRate);
+			groupsOfMode.put(periodNanos, group);
+			if (fixedRate)
+				group.future = executor.scheduleAtFixedRate(group, periodNanos, periodNanos, TimeUnit.NANOSECONDS);
+			else
+				group.future = executor.scheduleWithFixedDelay(group, periodNanos, periodNanos, TimeUnit.NANOSECONDS);
+			log.debug("Started group of tasks with period " + periodNanos + " ns.");
+		}
+		return group.add(new Slot(task));
+	}
+
+	/**
+	 * Changes the number of shards each group is split in, and the number of
+	 * workers with it, spreading the tasks of every group again.
+	 */
+	public synchronized void setShards(int shards) {
+		shards = Math.max(1, shards);
+		if (shards == this.shards)
+			return;
+		int threads = Math.max(1, shards - 1);
+		// the maximum size can never be below the core size
+		if (threads > workers.getMaximumPoolSize()) {
+			workers.setMaximumPoolSize(threads);
+			workers.setCorePoolSize(threads);
+		} else {
+			workers.setCorePoolSize(threads);
+			workers.setMaximumPoolSize(threads);
+		}
+		this.shards = shards;
+		for (Group group : groups.values())
+			group.reshard(shards);
+		for (Group group : fixedRateGroups.values())
+			group.reshard(shards);
+		log.debug("Groups of tasks split in " + shards + " shards.");
+	}
+
+	public int getShards() {
+		return shards;
+	}
+
+	/**
+	 * Returns the highest lag of the shards since the last call, in
+	 * nanoseconds: how long shards waited for a worker, how much longer than
+	 * the period a shard took, or how overdue a shard still running was when
+	 * its next tick came.
+	 */
+	public long takeLagNanos() {
+		return maxLag.getAndSet(0);
+	}
+
+	private void recordLag(long lagNanos) {
+		long current;
+		while (lagNanos > (current = maxLag.get())) {
+			if (maxLag.compareAndSet(current, lagNanos))
+				return;
+		}
+	}
+
+	/**
+	 * Stops the workers that run the shards. Groups still scheduled in the
+	 * executor run all their shards in the thread of the tick from then on.
+	 */
+	public void shutdown() {
+		workers.shutdown();
+	}
+
+	/**
+	 * Returns the number of groups currently scheduled.
+	 */
+	public synchronized int getGroupCount() {
+		return groups.size() + fixedRateGroups.size();
+	}
+
+	private void remove(Group group, Slot slot) {
+		synchronized (this) {
+			if (!group.removeSlot(slot))
+				return;
+			if (group.size == 0) {
+				group.future.cancel(false);
+				(group.fixedRate ? fixedRateGroups : groups).remove(group.period);
+				log.debug("Stopped group of tasks with period " + group.period + " ns.");
+			}
+		}
+	}
+
+	/**
+	 * A task with the flag that keeps it from running twice at the same time
+	 * while it is moved from one shard to another.
+	 */
+	private static final class Slot {
+		private final Runnable task;
+		private final AtomicBoolean running = new AtomicBoolean();
+
+		Slot(Runnable task) {
+			this.task = task;
+		}
+	}
+
+	private final class Group implements Runnable {
+		private final long period;
+		private final boolean fixedRate;
+		private volatile Shard[] shardList;
+		private ScheduledFuture<?> future;
+		private int size;
+		private int next;
+
+		Group(long period, boolean fixedRate) {
+			this.period = period;
+			this.fixedRate = fixedRate;
+			shardList = newShards(shards);
+		}
+
+		private Shard[] newShards(int count) {
+			Shard[] created = new Shard[count];
+			for (int j = 0; j < count; j++) {
+				created[j] = new Shard(period);
+			}
+			return created;
+		}
+
+		Registration add(final Slot slot) {
+			// tasks are spread evenly among shards and stay in theirs
+			Shard[] current = shardList;
+			next = next % current.length;
+			current[next].add(slot);
+			next = (next + 1) % current.length;
+			size++;
+			return new Registration() {
+				public void cancel() {
+					remove(Group.this, slot);
+				}
+			};
+		}
+
+		boolean removeSlot(Slot slot) {
+			for (Shard shard : shardList) {
+				if (shard.remove(slot)) {
+					size--;
+					return true;
+				}
+			}
+			return false;
+		}
+
+		void reshard(int count) {
+			List<Slot> slots = new ArrayList<Slot>(size);
+			for (Shard shard : shardList) {
+				for (Slot slot : shard.slots)
+					slots.add(slot);
+			}
+			Shard[] reshaped = newShards(count);
+			for (int j = 0; j < slots.size(); j++)
+				reshaped[j % count].add(slots.get(j));
+			next = slots.size() % count;
+			shardList = reshaped;
+		}
+
+		public void run() {
+			Shard[] current = shardList;
+			long now = System.nanoTime();
+			for (int j = 1; j < current.length; j++) {
+				Shard shard = current[j];
+				if (shard.slots.length == 0)
+					continue;
+				if (shard.running.get()) {
+					// the shard will skip this tick; it is overdue by the time
+					// it has been running beyond the period
+					recordLag(now - shard.startedAt - period);
+					continue;
+				}
+				shard.dispatchedAt = now;
+				workers.execute(shard);
+			}
+			current[0].dispatchedAt = now;
+			current[0].run();
+		}
+	}
+
+	private final class Shard implements Runnable {
+		private final long period;
+		private volatile Slot[] slots = NO_SLOTS;
+		private final AtomicBoolean running = new AtomicBoolean();
+		private volatile long dispatchedAt;
+		private volatile long startedAt;
+
+		Shard(long period) {
+			this.period = period;
+		}
+
+		// tasks are added and removed far less often than they are run, so the
+		// array is copied on every change and read without locking
+		void add(Slot slot) {
+			Slot[] current = slots;
+			Slot[] updated = new Slot[current.length + 1];
+			System.arraycopy(current, 0, updated, 0, current.length);
+			updated[current.length] = slot;
+			slots = updated;
+		}
+
+		boolean remove(Slot slot) {
+			Slot[] current = slots;
+			for (int j = 0; j < current.length; j++) {
+				if (current[j] == slot) {
+					Slot[] updated = new Slot[current.length - 1];
+					System.arraycopy(current, 0, updated, 0, j);
+					System.arraycopy(current, j + 1, updated, j, current.length - j - 1);
+					slots = updated;
+					return true;
+				}
+			}
+			return false;
+		}
+
+		public void run() {
+			if (!running.compareAndSet(false, true)) {
+				recordLag(System.nanoTime() - startedAt - period);
+				return;
+			}
+			try {
+				long start = System.nanoTime();
+				startedAt = start;
+				recordLag(start - dispatchedAt);
+				Slot[] current = slots;
+				for (int j = 0; j < current.length; j++) {
+					Slot slot = current[j];
+					if (!slot.running.compareAndSet(false, true))
+						continue;
+					try {
+						slot.task.run();
+					} catch (RuntimeException e) {
+						log.error("Unexpected exception thrown by periodic task: " + e.getMessage(), e);
+					} finally {
+						slot.running.set(false);
+					}
+				}
+				// a shard that takes longer than the period delays its tasks
+				// even when no tick is missed, as with fixed delay groups
+				recordLag(System.nanoTime() - start - period);
+			} finally {
+				running.set(false);
+			}
+		}
+	}
+}
@@ -0,0 +1,173 @@
+/* Copyright 2014 Lyncos Technologies S. L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lhings.java.utils;
+
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Executor that runs the tasks submitted with the same key one after another,
+ * in the order they were submitted, while tasks with different keys run in
+ * parallel on a shared pool of threads. Each key has its own lane: a queue of
+ * pending tasks of which at most one is running at any time, so a slow task
+ * only delays the tasks of its own key.
+ */
+public final class StripedExecutor {
+
+	private static final Logger log = LoggerFactory.getLogger(StripedExecutor.class);
+
+	private final ExecutorService pool;
+	private final ConcurrentMap<Object, Lane> lanes = new ConcurrentHashMap<Object, Lane>();
+
+	private static final class Lane implements Runnable {
+		private final Executor executor;
+		private final Queue<Runnable> tasks = new LinkedList<Runnable>();
+		private boolean scheduled;
+
+		Lane(Executor executor) {
+			this.executor = executor;
+		}
+
+		void execute(Runnable task) {
+			synchronized (this) {
+				tasks.add(task);
+				if (scheduled)
+					return;
+				scheduled = true;
+			}
+			try {
+				executor.execute(this);
+			} catch (RejectedExecutionException e) {
+				// the pool is shut down, so the pending tasks of the lane would
+				// never run: they are dropped, and the lane is not left marked
+				// as scheduled
+				synchronized (this) {
+					log.warn("Executor rejected a lane, dropping its " + tasks.size() + " pending tasks.");
+					tasks.clear();
+					scheduled = false;
+				}
+				throw e;
+			}
+		}
+
+		public void run() {
+			boolean drained = false;
+			try {
+				while (true) {
+					Runnable task;
+					synchronized (this) {
+						task = tasks.poll();
+						if (task == null) {
+							scheduled = false;
+							drained = true;
+							return;
+						}
+					}
+					try {
+						task.run();
+					} catch (RuntimeException e) {
+						log.error("Unexpected exception thrown by task: " + e.getMessage(), e);
+					}
+				}
+			} finally {
+				// a task that threw an error must not leave the lane stuck:
+				// the next task submitted schedules it again
+				if (!drained) {
+					synchronized (this) {
+						scheduled = false;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Creates an executor backed by as many threads as available processors.
+	 *
+	 * @param name
+	 *            Prefix of the names of the threads of the pool.
+	 */
+	public StripedExecutor(String name) {
+		this(name, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Creates an executor backed by the given number of threads.
+	 *
+	 * @param name
+	 *            Prefix of the names of the threads of the pool.
+	 * @param threads
+	 *            Number of threads that run tasks of different keys at the same
+	 *            time.
+	 */
+	public StripedExecutor(final String name, int threads) {
+		pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Creates an executor that runs the lanes in the given pool, for instance
+	 * one that starts a virtual thread per task.
+	 */
+	public StripedExecutor(ExecutorService pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * Runs the given task after every task previously submitted with the same
+	 * key has finished.
+	 */
+	public void execute(Object key, Runnable task) {
+		Lane lane = lanes.get(key);
+		if (lane == null) {
+			Lane newLane = new Lane(pool);
+			lane = lanes.putIfAbsent(key, newLane);
+			if (lane == null)
+				lane = newLane;
+		}
+		lane.execute(task);
+	}
+
+	/**
+	 * Forgets the lane of the given key. Tasks already submitted with it still
+	 * run.
+	 */
+	public void remove(Object key) {
+		lanes.remove(key);
+	}
+
+	public void shutdown() {
+		pool.shutdown();
+	}
+}
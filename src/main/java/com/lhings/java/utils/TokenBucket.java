@@ -0,0 +1,98 @@
+/* Copyright 2014 Lyncos Technologies S. L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lhings.java.utils;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket: tokens are added at a constant rate up to a maximum, and each
+ * operation takes one. The maximum is the size of the bursts allowed, and the
+ * rate the sustained number of operations per second.
+ */
+public final class TokenBucket {
+
+	private final double tokensPerNano;
+	private final double capacity;
+	private double tokens;
+	private long lastRefill;
+
+	/**
+	 * @param permitsPerSecond
+	 *            Sustained rate of operations allowed.
+	 * @param burst
+	 *            Number of operations allowed at once after a quiet period.
+	 */
+	public TokenBucket(double permitsPerSecond, int burst) {
+		if (permitsPerSecond <= 0 || burst < 1)
+			throw new IllegalArgumentException("Invalid token bucket: " + permitsPerSecond + " per second, burst of " + burst + ".");
+		this.tokensPerNano = permitsPerSecond / TimeUnit.SECONDS.toNanos(1);
+		this.capacity = burst;
+		this.tokens = burst;
+		this.lastRefill = System.nanoTime();
+	}
+
+	/**
+	 * Takes a token if there is one.
+	 *
+	 * @return false if there was no token.
+	 */
+	public synchronized boolean tryAcquire() {
+		refill();
+		if (tokens < 1)
+			return false;
+		tokens -= 1;
+		return true;
+	}
+
+	/**
+	 * Takes a token, waiting until there is one.
+	 *
+	 * @return The time waited, in nanoseconds.
+	 */
+	public long acquire() throws InterruptedException {
+		long start = System.nanoTime();
+		while (true) {
+			long wait;
+			synchronized (this) {
+				refill();
+				if (tokens >= 1) {
+					tokens -= 1;
+					return System.nanoTime() - start;
+				}
+				wait = nanosUntilToken();
+			}
+			TimeUnit.NANOSECONDS.sleep(wait);
+		}
+	}
+
+	/**
+	 * Returns the time until there is a token, in nanoseconds.
+	 */
+	public synchronized long nanosUntilAvailable() {
+		refill();
+		return tokens >= 1 ? 0 : nanosUntilToken();
+	}
+
+	private long nanosUntilToken() {
+		return Math.max(1, (long) Math.ceil((1 - tokens) / tokensPerNano));
+	}
+
+	private void refill() {
+		long now = System.nanoTime();
+		tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerNano);
+		lastRefill = now;
+	}
+}
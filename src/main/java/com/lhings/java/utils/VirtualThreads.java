@@ -0,0 +1,91 @@
+/* Copyright 2014 Lyncos Technologies S. L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lhings.java.utils;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Access to the virtual threads of Java 21 and newer. The library is compiled
+ * for older versions of Java, so virtual threads are looked up by reflection
+ * once, when this class is loaded; on older JVMs they are simply reported as
+ * not available.
+ */
+public final class VirtualThreads {
+
+	private static final Logger log = LoggerFactory.getLogger(VirtualThreads.class);
+
+	private static final Method ofVirtual;
+	private static final Method builderName;
+	private static final Method builderFactory;
+	private static final Method newThreadPerTaskExecutor;
+
+	static {
+		Method ofVirtualMethod = null, nameMethod = null, factoryMethod = null, executorMethod = null;
+		try {
+			// methods are taken from the public interfaces, the classes that
+			// implement them are not accessible
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			ofVirtualMethod = Thread.class.getMethod("ofVirtual");
+			nameMethod = builderClass.getMethod("name", String.class, long.class);
+			factoryMethod = builderClass.getMethod("factory");
+			executorMethod = java.util.concurrent.Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+		} catch (ClassNotFoundException e) {
+			ofVirtualMethod = null;
+		} catch (NoSuchMethodException e) {
+			ofVirtualMethod = null;
+		}
+		ofVirtual = ofVirtualMethod;
+		builderName = nameMethod;
+		builderFactory = factoryMethod;
+		newThreadPerTaskExecutor = executorMethod;
+	}
+
+	private VirtualThreads() {
+	}
+
+	/**
+	 * Returns true if this JVM supports virtual threads.
+	 */
+	public static boolean isAvailable() {
+		return ofVirtual != null;
+	}
+
+	/**
+	 * Creates an executor that runs every task in a new virtual thread.
+	 *
+	 * @param name
+	 *            Prefix of the names of the threads.
+	 * @return The executor, or null if this JVM does not support virtual
+	 *         threads.
+	 */
+	public static ExecutorService newVirtualThreadPerTaskExecutor(String name) {
+		if (ofVirtual == null)
+			return null;
+		try {
+			Object builder = builderName.invoke(ofVirtual.invoke(null), name + "-", 1L);
+			ThreadFactory factory = (ThreadFactory) builderFactory.invoke(builder);
+			return (ExecutorService) newThreadPerTaskExecutor.invoke(null, factory);
+		} catch (Exception e) {
+			log.warn("Virtual threads could not be created: " + e.getMessage());
+			return null;
+		}
+	}
+}